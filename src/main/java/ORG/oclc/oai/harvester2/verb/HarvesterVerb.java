@@ -37,6 +37,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
@@ -54,6 +55,7 @@ import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipInputStream;
 import javax.xml.stream.XMLStreamException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.control.Watchdog;
 import nl.mpi.oai.harvester.utils.MarkableFileInputStream;
 import org.codehaus.stax2.XMLInputFactory2;
 import org.codehaus.stax2.XMLStreamReader2;
@@ -294,8 +296,13 @@ public abstract class HarvesterVerb {
         HttpURLConnection con = null;
         boolean suppressAgent = false;
         int responseCode = 0;
+        // retries are part of the request, so a server that keeps asking
+        // to retry later is seen to stall
+        Watchdog.phase("request", this.requestURL);
         do {
             con = (HttpURLConnection) url.openConnection();
+            Watchdog.continued("request", this.requestURL);
+            Watchdog.connection(con);
             if (!suppressAgent) 
                 con.setRequestProperty("User-Agent", "OAIHarvester/2.0");
             con.setRequestProperty("Accept-Encoding",
@@ -345,14 +352,17 @@ public abstract class HarvesterVerb {
                 }
                 logger.debug("Retry-After=" + retrySeconds);
                 if (retrySeconds > 0) {
+                    Watchdog.continued("retry after " + retrySeconds + " seconds", requestURL);
                     try {
                         Thread.sleep(retrySeconds * 1000);
                     } catch (InterruptedException ex) {
-                        logger.error(ex);
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to retry URL["+requestURL+"]");
                     }
                 }
             }
         } while (responseCode == HttpURLConnection.HTTP_UNAVAILABLE);
+        Watchdog.phase("read", this.requestURL);
         String contentEncoding = con.getHeaderField("Content-Encoding");
         logger.debug("Content-Encoding=" + contentEncoding);
         if ("compress".equals(contentEncoding)) {
@@ -379,6 +389,7 @@ public abstract class HarvesterVerb {
             logger.debug("buffered ["+size+"] bytes for URL["+requestURL+"]");
             str = new ByteArrayInputStream(baos.toByteArray());
         }
+        Watchdog.connection(null);
     }
     
     /**
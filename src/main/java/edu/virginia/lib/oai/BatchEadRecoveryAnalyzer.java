@@ -92,11 +92,12 @@ public class BatchEadRecoveryAnalyzer {
             }
 
             // Stage 3  Strict re-parse validation
-            if (result.xml != null && canParse(result.xml)) {
+            String recovered = result.getXml();
+            if (recovered != null && canParse(recovered)) {
 
                 Files.writeString(
                         repairedDir.resolve(newName),
-                        result.xml
+                        recovered
                 );
 
                 repaired++;
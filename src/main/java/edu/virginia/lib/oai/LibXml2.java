@@ -1,6 +1,7 @@
 package edu.virginia.lib.oai;
 
 import com.sun.jna.*;
+import java.nio.Buffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -16,6 +17,21 @@ public interface LibXml2 extends Library {
                           String encoding,
                           int options);
 
+    void xmlInitParser();
+
+    /* ---------- Parser contexts ---------- */
+
+    Pointer xmlNewParserCtxt();
+
+    void xmlFreeParserCtxt(Pointer ctxt);
+
+    Pointer xmlCtxtReadMemory(Pointer ctxt,
+                              Buffer buffer,
+                              int size,
+                              String URL,
+                              String encoding,
+                              int options);
+
     void xmlFreeDoc(Pointer doc);
 
     void xmlFree(Pointer ptr);
@@ -26,6 +42,8 @@ public interface LibXml2 extends Library {
 
     void xmlBufferFree(Pointer buffer);
 
+    void xmlBufferEmpty(Pointer buffer);
+
     Pointer xmlBufferContent(Pointer buffer);
 
     int xmlBufferLength(Pointer buffer);
@@ -43,6 +61,11 @@ public interface LibXml2 extends Library {
     void xmlSetStructuredErrorFunc(Pointer ctx,
                                    StructuredErrorHandler handler);
 
+    /** Available from libxml2 2.13 */
+    void xmlCtxtSetErrorHandler(Pointer ctxt,
+                                StructuredErrorHandler handler,
+                                Pointer data);
+
     interface StructuredErrorHandler extends Callback {
         void apply(Pointer userData, XmlErrorStruct error);
     }
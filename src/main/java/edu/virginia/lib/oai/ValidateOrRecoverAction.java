@@ -5,11 +5,13 @@ import nl.mpi.oai.harvester.control.OutputDirectory;
 import nl.mpi.oai.harvester.control.Util;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.UnclosableInputStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
 import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
@@ -17,11 +19,14 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ValidateOrRecoverAction implements Action {
 
@@ -32,6 +37,29 @@ public class ValidateOrRecoverAction implements Action {
     protected String suffix;
     protected boolean groupByProvider;
 
+    /* Parsers and serializers are expensive to create, and are kept for
+       reuse by the thread that created them. */
+    private static final ThreadLocal<SAXParser> parser = ThreadLocal.withInitial(() -> {
+        try {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            spf.setValidating(false);
+            return spf.newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException("cannot create a parser", e);
+        }
+    });
+
+    private static final ThreadLocal<Transformer> serializer = ThreadLocal.withInitial(() -> {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            return transformer;
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("cannot create a serializer", e);
+        }
+    });
+
     public ValidateOrRecoverAction(OutputDirectory dir,
                                    String suffix,
                                    boolean groupByProvider) {
@@ -48,19 +76,24 @@ public class ValidateOrRecoverAction implements Action {
         for (Metadata record : records) {
             try {
 
-                String originalXml = record.hasDoc()
+                // a tree is checked as it would be saved, a stream as
+                // it was received
+                byte[] serialized = record.hasDoc()
                         ? serializeDom(record.getDoc())
-                        : readStream(record.getStream());
+                        : null;
 
                 String id = record.getId();
 
                 List<String> validationErrors = new ArrayList<>();
-                boolean isValid = validate(originalXml, validationErrors);
+                boolean isValid = validate(serialized != null
+                        ? new ByteArrayInputStream(serialized)
+                        : new UnclosableInputStream(record.getStream()),
+                        validationErrors);
 
                 if (isValid) {
                     // If this record previously failed, remove its error file
                     try {
-                        Path errorPath = chooseLocation(record);
+                        Path errorPath = locateFile(groupByProvider ? record.getOrigin().getName() : null, id);
 
                         if (Files.exists(errorPath)) {
                             Files.delete(errorPath);
@@ -76,22 +109,37 @@ public class ValidateOrRecoverAction implements Action {
                     continue;
                 }
                 
+                // only now the whole record is needed
+                byte[] original = serialized;
+                if (original == null) {
+                    try (InputStream in = record.getStream()) {
+                        original = in.readAllBytes();
+                    }
+                }
+                String originalXml = new String(original, serialized != null
+                        ? StandardCharsets.UTF_8
+                        : declaredEncoding(original));
+
                 logger.warn(record.getOrigin().getName() + "Validation failed for record [{}]", id);
                 System.out.println(record.getOrigin().getName() + "Validation failed for record "+id);
 
                 List<String> errorMessages = new ArrayList<>(validationErrors);
+                byte[] recoveredBytes = null;
                 String recoveredXml = null;
 
                 if (XmlRecovery.isAvailable()) {
 
+                    // a stream is recovered in the encoding it declares
                     XmlRecovery.RecoveryResult result =
-                            XmlRecovery.recover(originalXml);
+                            XmlRecovery.recover(original,
+                                    serialized != null ? "UTF-8" : null);
 
                     for (XmlRecovery.XmlError e : result.errors) {
                         errorMessages.add(formatRecoveryError(e));
                     }
 
-                    recoveredXml = result.xml;
+                    recoveredBytes = result.bytes;
+                    recoveredXml = result.getXml();
 
                     if (recoveredXml != null) {
                         logger.info("Recovery succeeded for [{}]", id);
@@ -112,13 +160,12 @@ public class ValidateOrRecoverAction implements Action {
                 writeDiagnosticFile(outputPath, id,
                         originalXml, recoveredXml, errorMessages);
 
-                if (recoveredXml != null) {
+                if (recoveredBytes != null) {
 
                     Metadata recovered = new Metadata(
                             id,
                             record.getPrefix(),
-                            new ByteArrayInputStream(
-                                    recoveredXml.getBytes(StandardCharsets.UTF_8)),
+                            new ByteArrayInputStream(recoveredBytes),
                             record.getOrigin(),
                             false,
                             false
@@ -142,6 +189,44 @@ public class ValidateOrRecoverAction implements Action {
         return true;
     }
 
+    private static final Pattern ENCODING = Pattern.compile(
+            "^<\\?xml[^>]*?\\sencoding\\s*=\\s*[\"']([A-Za-z][\\w.:-]*)[\"']");
+
+    /**
+     * Find the encoding of a record received as bytes, as an XML parser
+     * would: from a byte order mark, from the encoding named in the XML
+     * declaration, and UTF-8 otherwise.
+     *
+     * @param xml the bytes of the record
+     * @return the encoding to decode the record with
+     */
+    static Charset declaredEncoding(byte[] xml) {
+        if (xml.length >= 2) {
+            int b0 = xml[0] & 0xFF, b1 = xml[1] & 0xFF;
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0 && b1 == '<'))
+                return StandardCharsets.UTF_16BE;
+            if ((b0 == 0xFF && b1 == 0xFE) || (b0 == '<' && b1 == 0))
+                return StandardCharsets.UTF_16LE;
+        }
+        if (xml.length >= 3 && (xml[0] & 0xFF) == 0xEF
+                && (xml[1] & 0xFF) == 0xBB && (xml[2] & 0xFF) == 0xBF)
+            return StandardCharsets.UTF_8;
+
+        // the declaration is ASCII in every encoding that isn't UTF-16
+        String head = new String(xml, 0, Math.min(xml.length, 256),
+                StandardCharsets.ISO_8859_1);
+        Matcher m = ENCODING.matcher(head);
+        if (m.find()) {
+            try {
+                return Charset.forName(m.group(1));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown encoding " + m.group(1)
+                        + ", reading the record as UTF-8");
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     /* --------------------------------------------------
        OutputDirectory Integration (SaveAction pattern)
        -------------------------------------------------- */
@@ -164,6 +249,22 @@ public class ValidateOrRecoverAction implements Action {
         return(dir.placeNewFile(Util.toFileFormat(mapIdtoFilename(id), suffix)));
     }
 
+    /**
+     * Find the file a record was saved in, without choosing a new
+     * location.
+     *
+     * @param provName name of the provider, or null if not grouped
+     * @param id identifier of the record
+     * @return path to the file, which may not exist
+     * @throws IOException something went wrong when finding the directory
+     */
+    public Path locateFile(String provName, String id) throws IOException {
+        String file = Util.toFileFormat(mapIdtoFilename(id), suffix);
+        if (provName != null)
+            return dir.makeSubdirectory(Util.toFileFormat(provName)).locate(file);
+        return dir.locate(file);
+    }
+
     protected String mapIdtoFilename(String id)
     {
         return(id);
@@ -212,17 +313,19 @@ public class ValidateOrRecoverAction implements Action {
        XML Validation
        -------------------------------------------------- */
 
-    private boolean validate(String xml, List<String> errors) {
+    /**
+     * Check that a record is well-formed, streaming through its bytes.
+     *
+     * @param in the record, which is not closed
+     * @param errors receives the errors and warnings found
+     * @return true if no errors were found
+     */
+    private boolean validate(InputStream in, List<String> errors) {
 
         try {
-            DocumentBuilderFactory dbf =
-                    DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            dbf.setValidating(false);
-
-            DocumentBuilder builder = dbf.newDocumentBuilder();
-
-            builder.setErrorHandler(new ErrorHandler() {
+            SAXParser sax = parser.get();
+            sax.reset();
+            sax.parse(new InputSource(in), new DefaultHandler() {
 
                 @Override
                 public void warning(SAXParseException e) {
@@ -240,9 +343,6 @@ public class ValidateOrRecoverAction implements Action {
                 }
             });
 
-            builder.parse(new ByteArrayInputStream(
-                    xml.getBytes(StandardCharsets.UTF_8)));
-
             for (String err : errors) {
                 if (err.startsWith("ERROR")
                         || err.startsWith("FATAL")) {
@@ -260,34 +360,11 @@ public class ValidateOrRecoverAction implements Action {
 
     /* -------------------------------------------------- */
 
-    private String serializeDom(Document doc) throws Exception {
-        Transformer transformer =
-                TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-        StringWriter writer = new StringWriter();
-        transformer.transform(new DOMSource(doc),
-                new StreamResult(writer));
-        return writer.toString();
-    }
-
-    private String readStream(InputStream in)
-            throws IOException {
-
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(in,
-                        StandardCharsets.UTF_8))) {
-
-            StringBuilder sb = new StringBuilder();
-            char[] buffer = new char[8192];
-            int n;
-
-            while ((n = br.read(buffer)) != -1) {
-                sb.append(buffer, 0, n);
-            }
-
-            return sb.toString();
-        }
+    private byte[] serializeDom(Document doc) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.get().transform(new DOMSource(doc),
+                new StreamResult(out));
+        return out.toByteArray();
     }
 
     private String formatParseError(String level,
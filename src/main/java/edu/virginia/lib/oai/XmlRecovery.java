@@ -1,12 +1,13 @@
 package edu.virginia.lib.oai;
 
 import com.sun.jna.*;
-import com.sun.jna.ptr.IntByReference;
-import com.sun.jna.ptr.PointerByReference;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -16,6 +17,9 @@ import org.apache.logging.log4j.Logger;
  * - Uses XML_PARSE_RECOVER
  * - Collects structured errors
  * - Avoids InvalidMemoryAccess by proper memory handling
+ * - Safe to call from several threads at once: every call parses with its
+ *   own parser context, and errors are passed on to the call that caused
+ *   them
  */
 public class XmlRecovery {
 
@@ -23,9 +27,44 @@ public class XmlRecovery {
     private static final Logger logger =
             LogManager.getLogger(ValidateOrRecoverAction.class);
 
+    /** Errors of the recovery running on the current thread */
+    private static final ThreadLocal<List<XmlError>> collected = new ThreadLocal<>();
+
+    /**
+     * Error handler passing each error on to the recovery running on the
+     * thread reporting it. One instance is kept for good, so libxml2 never
+     * holds on to a collected callback.
+     */
+    private static final LibXml2.StructuredErrorHandler handler = (userData, errorStruct) -> {
+        List<XmlError> errors = collected.get();
+        if (errors == null)
+            return;
+        errorStruct.read();
+        String message = errorStruct.message == null ? "" : errorStruct.message.getString(0);
+        errors.add(new XmlError(
+                errorStruct.level,
+                errorStruct.code,
+                errorStruct.line,
+                errorStruct.int2,
+                message.trim()
+        ));
+    };
+
+    /** Whether libxml2 reports errors per parser context (2.13 and later) */
+    private static volatile boolean contextHandler = true;
+
+    /** Output buffers kept for reuse */
+    private static final ConcurrentLinkedQueue<Pointer> buffers = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    /** Maximum number of output buffers kept */
+    private static final int MAX_BUFFERS = Runtime.getRuntime().availableProcessors();
+
     static {
         try {
             if (LibXml2.INSTANCE != null) {
+                LibXml2.INSTANCE.xmlInitParser();
                 available = true;
                 logger.info("libxml2 loaded successfully.");
             }
@@ -46,56 +85,106 @@ public class XmlRecovery {
      * @return a RecoveryResult containing recovered XML and errors
      */
     public static RecoveryResult recover(String xmlInput) {
+        if (!available) {
+            return new RecoveryResult(xmlInput.getBytes(StandardCharsets.UTF_8), new ArrayList<>());
+        }
+        return recover(xmlInput.getBytes(StandardCharsets.UTF_8), "UTF-8");
+    }
+
+    /**
+     * Attempt to recover XML.
+     *
+     * @param xmlInput the input XML
+     * @param encoding the encoding of the input, or null to use the one
+     * it declares
+     * @return a RecoveryResult containing recovered XML and errors
+     */
+    public static RecoveryResult recover(byte[] xmlInput, String encoding) {
+        return recover(ByteBuffer.wrap(xmlInput), encoding);
+    }
+
+    /**
+     * Attempt to recover XML. A direct buffer is passed to libxml2 without
+     * copying it.
+     *
+     * @param xmlInput the input XML, from its position to its limit
+     * @param encoding the encoding of the input, or null to use the one
+     * it declares
+     * @return a RecoveryResult containing recovered XML and errors
+     */
+    public static RecoveryResult recover(ByteBuffer xmlInput, String encoding) {
 
         if (!available) {
-            return new RecoveryResult(xmlInput, new ArrayList<>());
+            byte[] copy = new byte[xmlInput.remaining()];
+            xmlInput.duplicate().get(copy);
+            return new RecoveryResult(copy, new ArrayList<>());
         }
 
         LibXml2 lib = LibXml2.INSTANCE;
         List<XmlError> errors = new ArrayList<>();
 
-        // Register structured error handler
-        lib.xmlSetStructuredErrorFunc(null, (userData, errorStruct) -> {
-            errorStruct.read();
-            String message = errorStruct.message == null ? "" : errorStruct.message.getString(0);
-            errors.add(new XmlError(
-                    errorStruct.level,
-                    errorStruct.code,
-                    errorStruct.line,
-                    errorStruct.int2,
-                    message.trim()
-            ));
-        });
-
-        // Convert string to UTF-8 bytes to safely pass to native libxml2
-        byte[] inputBytes = xmlInput.getBytes(StandardCharsets.UTF_8);
-
-        Pointer doc = lib.xmlReadMemory(
-                inputBytes,
-                inputBytes.length,
-                null,
-                "UTF-8",
-                LibXml2.XML_PARSE_RECOVER
-        );
-
-        if (doc == null) {
+        Pointer ctxt = lib.xmlNewParserCtxt();
+        if (ctxt == null) {
+            logger.error("libxml2 could not create a parser context");
             return new RecoveryResult(null, errors);
         }
+        Pointer doc = null;
+        Pointer buffer = null;
+        collected.set(errors);
+        try {
+            installHandler(lib, ctxt);
 
-        Pointer buffer = lib.xmlBufferCreate();
-        lib.xmlNodeDump(buffer, doc, lib.xmlDocGetRootElement(doc), 0, 1);
-
-        Pointer content = lib.xmlBufferContent(buffer);
-        int len = lib.xmlBufferLength(buffer);
+            ByteBuffer input = xmlInput.slice();
+            doc = lib.xmlCtxtReadMemory(ctxt, input, input.remaining(),
+                    null, encoding, LibXml2.XML_PARSE_RECOVER);
 
-        byte[] bytes = content.getByteArray(0, len);
-        String recoveredXml = new String(bytes, StandardCharsets.UTF_8);
+            if (doc == null) {
+                return new RecoveryResult(null, errors);
+            }
 
-        lib.xmlBufferFree(buffer);
+            buffer = buffers.poll();
+            if (buffer != null)
+                pooled.decrementAndGet();
+            else
+                buffer = lib.xmlBufferCreate();
+            lib.xmlNodeDump(buffer, doc, lib.xmlDocGetRootElement(doc), 0, 1);
+
+            Pointer content = lib.xmlBufferContent(buffer);
+            int len = lib.xmlBufferLength(buffer);
+
+            return new RecoveryResult(content.getByteArray(0, len), errors);
+        } finally {
+            collected.remove();
+            if (buffer != null) {
+                lib.xmlBufferEmpty(buffer);
+                if (pooled.incrementAndGet() <= MAX_BUFFERS) {
+                    buffers.add(buffer);
+                } else {
+                    pooled.decrementAndGet();
+                    lib.xmlBufferFree(buffer);
+                }
+            }
+            if (doc != null)
+                lib.xmlFreeDoc(doc);
+            lib.xmlFreeParserCtxt(ctxt);
+        }
+    }
 
-        lib.xmlFreeDoc(doc);        
-        
-        return new RecoveryResult(recoveredXml, errors);
+    /**
+     * Route the errors of a parser context to the handler. Older libxml2
+     * versions only have a handler per thread, which is set instead.
+     */
+    private static void installHandler(LibXml2 lib, Pointer ctxt) {
+        if (contextHandler) {
+            try {
+                lib.xmlCtxtSetErrorHandler(ctxt, handler, null);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                logger.info("libxml2 has no error handlers per parser context, using one per thread");
+                contextHandler = false;
+            }
+        }
+        lib.xmlSetStructuredErrorFunc(null, handler);
     }
 
 
@@ -103,13 +192,23 @@ public class XmlRecovery {
      * Result of XML recovery
      */
     public static class RecoveryResult {
-        public final String xml;
+        /** The recovered XML in UTF-8, or null if recovery failed */
+        public final byte[] bytes;
         public final List<XmlError> errors;
 
-        public RecoveryResult(String xml, List<XmlError> errors) {
-            this.xml = xml;
+        public RecoveryResult(byte[] bytes, List<XmlError> errors) {
+            this.bytes = bytes;
             this.errors = errors;
         }
+
+        /**
+         * Get the recovered XML as text.
+         *
+         * @return the XML, or null if recovery failed
+         */
+        public String getXml() {
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
     }
 
     /**
@@ -22,6 +22,7 @@ import ORG.oclc.oai.harvester2.verb.GetRecord;
 import ORG.oclc.oai.harvester2.verb.Identify;
 import ORG.oclc.oai.harvester2.verb.ListIdentifiers;
 import ORG.oclc.oai.harvester2.verb.ListMetadataFormats;
+import ORG.oclc.oai.harvester2.verb.ListSets;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.control.Util;
 import nl.mpi.oai.harvester.control.Configuration.CompareSkipVals;
@@ -30,9 +31,11 @@ import nl.mpi.oai.harvester.harvesting.Harvesting;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
 import nl.mpi.oai.harvester.metadata.NSContext;
+import nl.mpi.oai.harvester.utils.DocumentSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -50,6 +53,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents a single OAI-PMH provider.
@@ -92,6 +96,15 @@ public class Provider {
     /** Maximum timeout for a reading a record  */
     public int recordTimeout = 0;
     
+    /** Maximum wall-clock time, in seconds, for harvesting (0: no limit) */
+    public int deadline = 0;
+
+    /** Moment, in nanoseconds, the current harvest of the provider started */
+    private long started = System.nanoTime();
+
+    /** Set when the current harvest is given up, for example when stalled */
+    private volatile boolean abandoned = false;
+
     /** Do I need some time on my own? */
     public boolean exclusive = false;
     
@@ -110,29 +123,56 @@ public class Provider {
 
     /**
      * We make so many XPath queries we could just as well keep one XPath
-     * object to hand for them.
+     * object to hand for them. Like the document builder and the temporary
+     * file below, it is only created when the provider is being harvested.
      */
-    public final XPath xpath;
+    private XPath xpath = null;
     
-    // document builder factory
-    public final DocumentBuilder db;
+    // document builder
+    private DocumentBuilder db = null;
     
-    public Path temp;
+    // temporary file for buffering responses
+    private Path temp = null;
+
+    // whether creating the temporary file has been tried
+    private boolean tempCreated = false;
 
 	/**
 	 * Provider deletion mode
 	 */
 	public DeletionMode deletionMode;
 
+    /** Identify response of the endpoint, requested once it is obtained */
+    private volatile Document identifyResponse = null;
+
+    /** ListMetadataFormats response of the endpoint, requested at most once */
+    private DocumentSource formatsResponse = null;
+
+    /** Whether the endpoint has been contacted ahead of harvesting */
+    private final AtomicBoolean preflighted = new AtomicBoolean(false);
+
+    /** When the endpoint was contacted ahead of harvesting, in milliseconds */
+    private volatile long preflightTime = 0;
+
+    /** The sets as configured, before checkSets removed any */
+    private String[] configuredSets = null;
+
+    /** Whether the deletion mode was taken from the Identify response */
+    private boolean deletionModeFetched = false;
+
     /**
      * Provider constructor
      * <br><br>
      * 
-     * Note the constructor might throw the ParserConfigurationException. This 
-     * checked exception occurs when the factory class cannot create a document
-     * builder. This condition can arise when the factory cannot find the 
-     * necessary class, does not have access to it, or can for some reason 
-     * not instantiate the builder.
+     * A provider is a lightweight description of an endpoint until it is
+     * harvested: the objects needed for parsing responses and the temporary
+     * file are created when first used, and released by close(). A
+     * configuration can therefore list thousands of providers cheaply.
+     * <br><br>
+     *
+     * Note the constructor is declared to throw the
+     * ParserConfigurationException for compatibility; the checked exception
+     * used to occur when the document builder was created here.
      *
      * @param url OAI-PMH URL (endpoint) of the provider
      * @param maxRetryCount maximum number of retries
@@ -152,41 +192,255 @@ public class Provider {
 	this.maxRetryCount = maxRetryCount;
         
         this.retryDelays = retryDelays;
+    }
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        // note: the dbf might throw the checked ParserConfigurationException
-        db = dbf.newDocumentBuilder();
+    /**
+     * Get the XPath object of this provider, creating it on first use.
+     *
+     * @return XPath object aware of the oai and os namespace prefixes
+     */
+    public synchronized XPath getXPath() {
+        if (xpath == null) {
+	    XPathFactory xpf = XPathFactory.newInstance();
+	    xpath = xpf.newXPath();
+	    NSContext nsContext = new NSContext();
+	    nsContext.add("oai", "http://www.openarchives.org/OAI/2.0/");
+	    nsContext.add("os", "http://www.openarchives.org/OAI/2.0/static-repository");
+	    xpath.setNamespaceContext(nsContext);
+        }
+        return xpath;
+    }
 
-	XPathFactory xpf = XPathFactory.newInstance();
-	xpath = xpf.newXPath();
-	NSContext nsContext = new NSContext();
-	nsContext.add("oai", "http://www.openarchives.org/OAI/2.0/");
-	nsContext.add("os", "http://www.openarchives.org/OAI/2.0/static-repository");
-	xpath.setNamespaceContext(nsContext);
-        
-        try {
-            temp = Files.createTempFile("oai-",null);
-        } catch (IOException ex) {
-            temp = null;
+    /**
+     * Get the document builder of this provider, creating it on first use.
+     *
+     * @return the document builder
+     * @throws IllegalStateException if the factory cannot create a builder
+     */
+    public synchronized DocumentBuilder getDocumentBuilder() {
+        if (db == null) {
+            try {
+                db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("cannot create a document builder", e);
+            }
         }
+        return db;
+    }
 
+    /**
+     * Get the temporary file for buffering responses from this provider,
+     * creating it on first use.
+     *
+     * @return the file, or null if it could not be created
+     */
+    public synchronized Path getTemp() {
+        if (!tempCreated) {
+            tempCreated = true;
+            try {
+                temp = Files.createTempFile("oai-",null);
+            } catch (IOException ex) {
+                logger.warn("cannot create a temporary file for " + oaiUrl + ", buffering in memory");
+                temp = null;
+            }
+        }
+        return temp;
     }
 
     /**
-     * Prepare this object for use.
+     * Prepare this object for use. Both the name and the deletion mode are
+     * taken from the same Identify response.
      */
     public void init() {
 		if (name == null) fetchName();
 		if(deletionMode == null) fetchDeletionMode();
     }
 
-    public void close() {
+    /**
+     * Contact the endpoint ahead of harvesting. Identify, ListMetadataFormats
+     * and, when sets are configured, ListSets are requested once; the
+     * responses are kept for the worker that will harvest the provider. A
+     * request that fails here is simply made again, with retries, by the
+     * worker. No lock on the provider is held while waiting for the
+     * endpoint.
+     */
+    public void preflight() {
+        if (!preflighted.compareAndSet(false, true))
+            return;
+        preflightTime = System.currentTimeMillis();
+
+        init();
+
+        if (getMetadataFormats() == null) {
+            try {
+                ListMetadataFormats lmf = new ListMetadataFormats(oaiUrl, timeout);
+                setMetadataFormats(lmf.getDocumentSource());
+            } catch (IOException | ParserConfigurationException | SAXException
+                    | TransformerException e) {
+                logger.warn("Preflight ListMetadataFormats of " + oaiUrl + " failed: " + e.getMessage());
+            }
+        }
+
+        if (hasSets())
+            checkSets();
+    }
+
+    /**
+     * Check if the endpoint has been contacted ahead of harvesting since
+     * it was last expired.
+     *
+     * @return true if preflight has been started
+     */
+    public boolean isPreflighted() {
+        return preflighted.get();
+    }
+
+    /**
+     * Forget the responses obtained in preflight, if they are older than
+     * the given age, so the endpoint is asked again. A long-running
+     * harvester uses this to notice changes in the capabilities of an
+     * endpoint. The Identify and ListMetadataFormats responses, the
+     * deletion mode taken from Identify and the check of the sets are
+     * dropped; the name of the provider is kept.
+     *
+     * @param maxAge age in milliseconds
+     * @return true if the responses were forgotten
+     */
+    public boolean expirePreflight(long maxAge) {
+        if (!preflighted.get() || System.currentTimeMillis() - preflightTime < maxAge)
+            return false;
+        identifyResponse = null;
+        synchronized (this) {
+            formatsResponse = null;
+            if (deletionModeFetched)
+                deletionMode = null;
+            if (configuredSets != null)
+                sets = configuredSets;
+        }
+        preflighted.set(false);
+        return true;
+    }
+
+    /**
+     * Remove configured sets the endpoint does not advertise in its ListSets
+     * response, saving the harvest requests (and retries) for them. Nothing
+     * is removed unless the complete list of sets could be obtained, and
+     * the configured sets are kept if the endpoint advertises none of them.
+     * The sets are checked as configured, also when an earlier check
+     * removed some.
+     */
+    void checkSets() {
+        synchronized (this) {
+            if (configuredSets == null)
+                configuredSets = sets;
+        }
+        Set<String> advertised = new HashSet<>();
+        try {
+            ListSets ls = new ListSets(oaiUrl, timeout);
+            for (;;) {
+                // an error, like noSetHierarchy, says nothing about the sets
+                Element error = (Element) getXPath().evaluate(
+                        "//*[local-name() = 'error']",
+                        ls.getDocument(), XPathConstants.NODE);
+                if (error != null) {
+                    logger.warn("Preflight ListSets of " + oaiUrl + " returned error["
+                            + error.getAttribute("code") + "], keeping all configured sets");
+                    return;
+                }
+                NodeList specs = (NodeList) getXPath().evaluate(
+                        "//*[local-name() = 'setSpec']/text()",
+                        ls.getDocument(), XPathConstants.NODESET);
+                for (int i = 0; i < specs.getLength(); i++)
+                    advertised.add(specs.item(i).getNodeValue());
+                String token = ls.getResumptionToken();
+                if (token == null || token.isEmpty())
+                    break;
+                ls = new ListSets(oaiUrl, token, timeout);
+            }
+        } catch (IOException | ParserConfigurationException | SAXException
+                | TransformerException | XPathExpressionException
+                | NoSuchFieldException | XMLStreamException e) {
+            logger.warn("Preflight ListSets of " + oaiUrl + " failed, keeping all configured sets: " + e.getMessage());
+            return;
+        }
+
+        List<String> kept = new ArrayList<>();
+        for (String set : configuredSets) {
+            if (advertised.contains(set))
+                kept.add(set);
+            else
+                logger.warn("Provider " + oaiUrl + " does not advertise set[" + set + "], skipping it");
+        }
+        if (kept.isEmpty()) {
+            logger.warn("Provider " + oaiUrl + " advertises none of the configured sets, keeping all of them");
+            sets = configuredSets;
+        } else if (kept.size() < configuredSets.length) {
+            sets = kept.toArray(new String[kept.size()]);
+        } else {
+            sets = configuredSets;
+        }
+    }
+
+    /**
+     * Get the Identify response of the endpoint, requesting it until it
+     * is obtained. The request is made without holding a lock, so two
+     * threads may both make it; either response is kept.
+     *
+     * @return the response, or null if it could not be obtained
+     */
+    protected Document getIdentifyResponse() {
+        Document response = identifyResponse;
+        if (response == null) {
+            try {
+                Identify ident = new Identify(oaiUrl, timeout);
+                response = ident.getDocument();
+                identifyResponse = response;
+            } catch (IOException | ParserConfigurationException | SAXException
+                    | TransformerException e) {
+                logger.error(oaiUrl + " : " + e.getMessage());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Get the ListMetadataFormats response obtained earlier, either during
+     * preflight or by a previous action sequence.
+     *
+     * @return the response, or null if it has not been obtained yet
+     */
+    public synchronized DocumentSource getMetadataFormats() {
+        return formatsResponse;
+    }
+
+    /**
+     * Keep a ListMetadataFormats response for reuse. The response is kept
+     * as a tree, so it can be processed any number of times.
+     *
+     * @param response the response of the endpoint
+     */
+    public synchronized void setMetadataFormats(DocumentSource response) {
+        Document doc = (response != null) ? response.getDocument() : null;
+        formatsResponse = (doc != null) ? new DocumentSource(doc) : null;
+    }
+
+    /**
+     * Release the resources used for harvesting this provider. They will be
+     * created anew if the provider is used again. The Identify and
+     * ListMetadataFormats responses are kept, so a provider harvested
+     * again by a long-running harvester does not need to ask for them.
+     */
+    public synchronized void close() {
 	if (temp != null) {
 	    try {
                 Files.deleteIfExists(temp);
             } catch (IOException ex) {
             }
         }
+        temp = null;
+        tempCreated = false;
+        xpath = null;
+        db = null;
     }
 
     /**
@@ -204,6 +458,7 @@ public class Provider {
 
     void fetchDeletionMode(){
         deletionMode = getProviderDeletionMode();
+        deletionModeFetched = true;
     }
 
     public DeletionMode getDeletionMode() {
@@ -212,6 +467,7 @@ public class Provider {
 
     public void setDeletionMode(DeletionMode deletionMode) {
         this.deletionMode = deletionMode;
+        this.deletionModeFetched = false;
     }
 
     /**
@@ -225,6 +481,7 @@ public class Provider {
 
     public void setSets(String[] sets) {
 	this.sets = sets;
+	this.configuredSets = null;
     }
 
     /** 
@@ -263,25 +520,13 @@ public class Provider {
      * @return provider name
      */
     public String getProviderName() {
-        try {
-            Identify ident = new Identify(oaiUrl, timeout);
-            return parseProviderName(ident.getDocument());
-        } catch (IOException | ParserConfigurationException | SAXException
-                    | TransformerException e) {
-            logger.error(this.getName() + " : " + e.getMessage());
-        }
-        return null;
+        Document response = getIdentifyResponse();
+        return (response != null) ? parseProviderName(response) : null;
     }
 
     public DeletionMode getProviderDeletionMode() {
-        try {
-            Identify ident = new Identify(oaiUrl, timeout);
-            return parseDeletionMode(ident.getDocument());
-        } catch (IOException | ParserConfigurationException | SAXException
-                | TransformerException e) {
-            logger.error(this.getName() + " : " + e.getMessage());
-        }
-        return null;
+        Document response = getIdentifyResponse();
+        return (response != null) ? parseDeletionMode(response) : null;
     }
 
     /**
@@ -292,7 +537,7 @@ public class Provider {
      */
     public String parseProviderName(Document response) {
 	try {
-	    NodeList name = (NodeList)xpath.evaluate("//*[local-name() = 'repositoryName']/text()",
+	    NodeList name = (NodeList)getXPath().evaluate("//*[local-name() = 'repositoryName']/text()",
 		    response, XPathConstants.NODESET);
 	    if (name != null && name.getLength() > 0) {
 		String provName = name.item(0).getNodeValue();
@@ -307,7 +552,7 @@ public class Provider {
 
     public DeletionMode parseDeletionMode(Document response) {
         try {
-            NodeList name = (NodeList) xpath.evaluate("//*[local-name() = 'deletedRecord']/text()",
+            NodeList name = (NodeList) getXPath().evaluate("//*[local-name() = 'deletedRecord']/text()",
                             response, XPathConstants.NODESET);
             if (name != null && name.getLength() > 0) {
                 String deletionMode = name.item(0).getNodeValue();
@@ -386,6 +631,80 @@ public class Provider {
         return this.retryDelays[retry];
     }
 
+    public void setDeadline(int deadline) {
+        this.deadline = deadline;
+    }
+
+    public int getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * Start the wall-clock budget for harvesting this provider. The budget
+     * is the deadline set on the provider.
+     */
+    public void startDeadline() {
+        this.started = System.nanoTime();
+        this.abandoned = false;
+    }
+
+    /**
+     * Give up on the current harvest of this provider. Unlike an interrupt,
+     * this cannot be lost: the harvest stops at the next check.
+     */
+    public void abandon() {
+        this.abandoned = true;
+    }
+
+    /**
+     * Get the time left before the deadline of this provider expires.
+     *
+     * @return remaining time in milliseconds, or Long.MAX_VALUE when the
+     *         provider has no deadline
+     */
+    public long getRemainingTime() {
+        if (deadline <= 0)
+            return Long.MAX_VALUE;
+        long elapsed = (System.nanoTime() - started) / 1_000_000;
+        return Math.max(0, deadline * 1000L - elapsed);
+    }
+
+    /**
+     * Check if harvesting this provider should stop, either because the
+     * thread doing the work was interrupted, for example during shutdown, or
+     * because the deadline of the provider has expired.
+     *
+     * @return true if the harvest should be abandoned
+     */
+    public boolean isCancelled() {
+        return abandoned || Thread.currentThread().isInterrupted() || getRemainingTime() == 0;
+    }
+
+    /**
+     * Wait before retrying a request. The wait is cut short when the
+     * deadline expires or the thread is interrupted; in the latter case the
+     * interrupt status is restored for the caller to see.
+     *
+     * @param seconds the retry delay
+     * @return false if the harvest should be abandoned instead of retried
+     */
+    public boolean retryPause(int seconds) {
+        long millis = Math.min(seconds * 1000L, getRemainingTime());
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (isCancelled()) {
+            logger.warn("Provider[" + this + "] giving up on retries, "
+                    + (Thread.currentThread().isInterrupted() ? "interrupted" : "deadline expired"));
+            return false;
+        }
+        return true;
+    }
+
     public void setExclusive(boolean exclusive) {
         this.exclusive = exclusive;
     }
@@ -463,14 +782,8 @@ public class Provider {
 		logger.error(e);
 	    }
             // retry the request once more
-            int retryDelay = getRetryDelay(i);
-            if (retryDelay > 0) {
-                try {
-                    Thread.sleep(retryDelay*1000);
-                } catch(InterruptedException e) {
-                    logger.error(e.getMessage(), e);
-                }
-            }                
+            if (!retryPause(getRetryDelay(i)))
+                break;
 	}
 	return null;
     }
@@ -546,7 +859,7 @@ public class Provider {
      */
     public void addIdentifiers(Document doc, List<String> ids) throws
 	    XPathExpressionException {
-	NodeList nl = (NodeList)xpath.evaluate("//*[starts-with(local-name(),'identifier') and parent::*[local-name()='header' and not(@status='deleted')]]/text()",
+	NodeList nl = (NodeList)getXPath().evaluate("//*[starts-with(local-name(),'identifier') and parent::*[local-name()='header' and not(@status='deleted')]]/text()",
 		doc, XPathConstants.NODESET);
 	if (nl == null)
 	    return;
@@ -566,8 +879,14 @@ public class Provider {
     public List<String> getPrefixes(MetadataFormat format) {
 	logger.debug("Checking format " + format);
 	try {
-	    ListMetadataFormats lmf = new ListMetadataFormats(oaiUrl, timeout);
-	    return parsePrefixes(lmf.getDocument(), format);
+	    if (getMetadataFormats() == null) {
+	        ListMetadataFormats lmf = new ListMetadataFormats(oaiUrl, timeout);
+	        setMetadataFormats(lmf.getDocumentSource());
+	    }
+	    DocumentSource formats = getMetadataFormats();
+	    if (formats == null)
+	        return Collections.emptyList();
+	    return parsePrefixes(formats.getDocument(), format);
 	} catch (TransformerException | XPathExpressionException
 		| ParserConfigurationException | SAXException | IOException e) {
 	    logger.error(e.getMessage(), e);
@@ -588,7 +907,7 @@ public class Provider {
 	    throws XPathExpressionException {
 	List<String> prefs = new ArrayList<>();
 
-	NodeList formats = (NodeList)xpath.evaluate("//*[local-name() = 'metadataFormat']",
+	NodeList formats = (NodeList)getXPath().evaluate("//*[local-name() = 'metadataFormat']",
 		doc, XPathConstants.NODESET);
 
 	if (formats == null) {
@@ -599,9 +918,9 @@ public class Provider {
 
 	for (int i=0; i<formats.getLength(); i++) {
 	    Node s = formats.item(i);
-	    String prefix = Util.getNodeText(xpath, "./*[local-name() = 'metadataPrefix']/text()", s);
-	    String schema = Util.getNodeText(xpath, "./*[local-name() = 'schema']/text()", s);
-	    String ns = Util.getNodeText(xpath, "./*[local-name() = 'metadataNamespace']/text()", s);
+	    String prefix = Util.getNodeText(getXPath(), "./*[local-name() = 'metadataPrefix']/text()", s);
+	    String schema = Util.getNodeText(getXPath(), "./*[local-name() = 'schema']/text()", s);
+	    String ns = Util.getNodeText(getXPath(), "./*[local-name() = 'metadataNamespace']/text()", s);
 	    String comp;
 	    if ("prefix".equals(format.getType())) {
 		comp = prefix;
@@ -107,6 +107,22 @@ public class StaticProvider extends Provider {
 	super.init();
     }
 
+    /**
+     * Static providers are not contacted ahead of harvesting: their entire
+     * content is fetched by the worker, and the Identify and
+     * ListMetadataFormats responses are part of it.
+     */
+    @Override
+    public void preflight() {
+    }
+
+    @Override
+    protected Document getIdentifyResponse() {
+	fetchContent();
+	if (providerContent == null) return null;
+	return getSubtree("/os:Repository/os:Identify");
+    }
+
     /**
      * Extract a subtree from the provider's content.
      * 
@@ -115,7 +131,7 @@ public class StaticProvider extends Provider {
      */
     private Document getSubtree(String xp) {
 	try {
-	    NodeList list = (NodeList)xpath.evaluate(xp, providerContent,
+	    NodeList list = (NodeList)getXPath().evaluate(xp, providerContent,
 		    XPathConstants.NODESET);
 
 	    if (list == null || list.getLength() == 0) {
@@ -19,12 +19,19 @@
 package nl.mpi.oai.harvester.action;
 
 import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.control.Watchdog;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents a sequence (or pipeline) of actions on metadata,
@@ -45,6 +52,13 @@ public class ActionSequence {
     private static final Map<Action, ResourcePool<Action>> pooledActions =
 			new HashMap<>();
 
+    /**
+     * The resource pools in the order they were created. Actions taken from
+     * several pools at once are claimed in this order, so sequences sharing
+     * pools can't deadlock.
+     */
+    private static final List<ResourcePool<Action>> poolOrder = new ArrayList<>();
+
     /**
      * The input format that must be available for this sequence
      * to be applicable.
@@ -54,6 +68,14 @@ public class ActionSequence {
     /* The actions, in order. */
     private final List<ResourcePool<Action>> actions;
 
+    /**
+     * For each action, the end of the pipeline starting with it: the index
+     * of the first action not part of it. A pipeline is a chain of
+     * transform actions, followed by a save action if that is the last
+     * action of the sequence.
+     */
+    private final int[] chainEnd;
+
     /**
      * Create a new action sequence.
      * 
@@ -71,6 +93,24 @@ public class ActionSequence {
 	for (Action act : theActions) {
 	    actions.add(getPool(act, resourcePoolSize));
 	}
+
+	// consecutive transforms are fused, unless a stylesheet repeats
+	chainEnd = new int[theActions.length];
+	for (int i = 0; i < theActions.length; i++) {
+	    int end = i + 1;
+	    if (theActions[i] instanceof TransformAction) {
+		while (end < theActions.length
+			&& theActions[end] instanceof TransformAction
+			&& !actions.subList(i, end).contains(actions.get(end)))
+		    end++;
+		// nothing after a final save needs the tree
+		if (end == theActions.length - 1
+			&& theActions[end] instanceof SaveAction
+			&& ((SaveAction) theActions[end]).writesFiles())
+		    end++;
+	    }
+	    chainEnd[i] = end;
+	}
     }
 
     /**
@@ -86,6 +126,7 @@ public class ActionSequence {
 	    }
 	    ResourcePool<Action> pool = new ResourcePool<>(acts);
 	    pooledActions.put(action, pool);
+	    poolOrder.add(pool);
 	}
 	return pooledActions.get(action);
     }
@@ -125,30 +166,180 @@ public class ActionSequence {
      * @param metadata a list of metadata records
      */
     public void runActions(List<Metadata> metadata) {
+        runActions(metadata, 0, null);
+    }
+
+    /**
+     * Perform the actions specified in the configuration, processing
+     * records in parallel<br><br>
+     *
+     * As soon as an action, like split or strip, leaves more than one
+     * record, the remaining actions are applied to each record as a
+     * separate task in the pool. Each task claims the actions it needs
+     * from their resource pools, so the pool sizes still limit the number
+     * of actions of a kind running at the same time. The method returns
+     * when all records have been processed.
+     *
+     * @param metadata a list of metadata records
+     * @param pool the pool to process records in, or null to process them
+     * one after another
+     */
+    public void runActions(List<Metadata> metadata, ForkJoinPool pool) {
+        runActions(metadata, 0, pool);
+    }
+
+    private void runActions(List<Metadata> metadata, int first, ForkJoinPool pool) {
 
 	// keep track of whether or not the action is the first in the sequence
 	boolean firstAction = true;
 
-        for (ResourcePool<Action> actPool : actions) {
+        for (int i = first; i < actions.size(); i++) {
+                ResourcePool<Action> actPool = actions.get(i);
+
+                if (pool != null && metadata.size() > 1
+                        && !ForkJoinTask.inForkJoinPool()) {
+                        // apply the rest of the sequence to each record separately
+                        fanOut(metadata, i, pool);
+                        return;
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                        logger.warn("Harvest cancelled, terminating sequence");
+                        return;
+                }
+
+                if (chainEnd[i] > i + 1) {
+                        // transforms in a row, and a final save, run as one
+                        // pipeline
+                        if (!runChain(metadata, i, chainEnd[i]))
+                                return;
+                        i = chainEnd[i] - 1;
+                        continue;
+                }
+
                 // claim an action in the pool
+                Watchdog.phase("wait for action", null);
                 Action action = actPool.get();
+                Watchdog.phase("action " + action,
+                        metadata.isEmpty() ? null : metadata.get(0).getId());
 
-                boolean done = action.perform(metadata);
-                actPool.release(action);
+                boolean done;
+                try {
+                        done = action.perform(metadata);
+                } finally {
+                        actPool.release(action);
+                }
                 if (!done) {
                         logger.error("Action " + action + " failed, terminating" +
                                         " sequence");
                         return;
                 } else
                         logger.debug("Action " + action + " was performed");
-                            
-                actPool.release(action);
                 
                 if (firstAction)
                     firstAction = false;
         }
     }
 
+    /**
+     * Run a chain of transform actions as a single pipeline, without
+     * building a document between one stylesheet and the next, nor before
+     * a final save.
+     *
+     * @return true on success
+     */
+    private boolean runChain(List<Metadata> metadata, int first, int end) {
+        List<ResourcePool<Action>> pools = new ArrayList<>(actions.subList(first, end));
+        synchronized (ActionSequence.class) {
+            pools.sort(Comparator.comparingInt(poolOrder::indexOf));
+        }
+
+        Map<ResourcePool<Action>, Action> claimed = new IdentityHashMap<>();
+        try {
+            Watchdog.phase("wait for action", null);
+            for (ResourcePool<Action> actPool : pools)
+                claimed.put(actPool, actPool.get());
+
+            List<Action> steps = new ArrayList<>();
+            List<TransformAction> chain = new ArrayList<>();
+            SaveAction save = null;
+            for (int i = first; i < end; i++) {
+                Action action = claimed.get(actions.get(i));
+                steps.add(action);
+                if (action instanceof TransformAction)
+                    chain.add((TransformAction) action);
+                else
+                    save = (SaveAction) action;
+            }
+            Watchdog.phase("action " + steps,
+                    metadata.isEmpty() ? null : metadata.get(0).getId());
+
+            if (!TransformAction.performChain(chain, save, metadata)) {
+                logger.error("Actions " + steps + " failed, terminating" +
+                        " sequence");
+                return false;
+            }
+            logger.debug("Actions " + steps + " were performed");
+            return true;
+        } finally {
+            for (Map.Entry<ResourcePool<Action>, Action> c : claimed.entrySet())
+                c.getKey().release(c.getValue());
+        }
+    }
+
+    /**
+     * Apply the actions from the given one onwards to each record in a
+     * separate task, and wait for the tasks to finish. When the calling
+     * worker is interrupted, the tasks not yet started are skipped, and
+     * the ones running are still waited for, so no record is saved after
+     * the sequence returns.
+     */
+    private void fanOut(List<Metadata> metadata, int next, ForkJoinPool pool) {
+        // let the tasks log to the file of the provider
+        final Map<String, String> context = ThreadContext.getImmutableContext();
+        // and report to the watchdog of the worker
+        final Watchdog.Activity activity = Watchdog.current();
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        List<Future<?>> tasks = new ArrayList<>(metadata.size());
+        for (Metadata record : metadata) {
+            final List<Metadata> single = new ArrayList<>(Collections.singletonList(record));
+            tasks.add(pool.submit(() -> {
+                if (cancelled.get())
+                    return;
+                ThreadContext.putAll(context);
+                Watchdog.attach(activity);
+                try {
+                    runActions(single, next, pool);
+                } finally {
+                    Watchdog.attach(null);
+                    ThreadContext.clearMap();
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (Future<?> task : tasks) {
+            for (;;) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        logger.warn("Harvest cancelled, terminating sequence");
+                        cancelled.set(true);
+                        interrupted = true;
+                    }
+                } catch (ExecutionException e) {
+                    logger.error("Actions failed for a record", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     @Override
     public String toString() {
 	StringBuilder sb = new StringBuilder("read input (");
@@ -0,0 +1,193 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import nl.mpi.tla.util.Saxon;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of the documents stylesheets look up through the document()
+ * function. Documents are kept on disk, in the cache directory of the
+ * transform action, and the ones used most recently also in memory as
+ * parsed trees, up to a maximum size.
+ * <br><br>
+ *
+ * All transform actions using the same cache directory share one cache.
+ * A document requested by several threads at once is fetched once; the
+ * others wait for it. A document is written to disk under a temporary
+ * name and then moved into place, so a reader never sees a partial file.
+ */
+class ResolverCache {
+
+    private static final Logger logger = LogManager.getLogger(ResolverCache.class);
+
+    /** The caches, by directory */
+    private static final Map<Path, ResolverCache> caches = new ConcurrentHashMap<>();
+
+    /** The cache directory */
+    private final Path dir;
+
+    /** Maximum number of bytes kept in memory, measured on disk */
+    private final long maxSize;
+
+    /** Number of bytes kept in memory, measured on disk */
+    private long size = 0;
+
+    /** Documents in memory, least recently used first; guarded by this */
+    private final LinkedHashMap<String, Entry> documents = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Documents being loaded, by URI */
+    private final Map<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final XdmNode doc;
+        final long size;
+
+        Entry(XdmNode doc, long size) {
+            this.doc = doc;
+            this.size = size;
+        }
+    }
+
+    private ResolverCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cache for a directory. The first request for a directory
+     * determines the memory size of its cache.
+     *
+     * @param dir the cache directory
+     * @param maxSize maximum number of bytes kept in memory
+     * @return the cache
+     */
+    static ResolverCache get(Path dir, long maxSize) {
+        return caches.computeIfAbsent(dir.toAbsolutePath(), d -> new ResolverCache(d, maxSize));
+    }
+
+    /**
+     * Resolve a document, from memory, from disk, or by fetching it.
+     *
+     * @param uri the absolute URI of the document
+     * @param href the URI as given to the resolver
+     * @param base the base URI as given to the resolver
+     * @param resolver the resolver fetching documents not cached, or null
+     * to fetch the URI directly
+     * @return the document
+     * @throws TransformerException the document can't be fetched or parsed
+     */
+    Source resolve(String uri, String href, String base, URIResolver resolver) throws TransformerException {
+        synchronized (this) {
+            Entry entry = documents.get(uri);
+            if (entry != null) {
+                logger.debug("Transformer resolver: " + uri + " from memory");
+                return entry.doc.asSource();
+            }
+        }
+
+        // the first thread asking for a document loads it
+        FutureTask<Entry> task = new FutureTask<>(() -> load(uri, href, base, resolver));
+        FutureTask<Entry> running = loading.putIfAbsent(uri, task);
+        try {
+            if (running == null) {
+                task.run();
+                running = task;
+            }
+            return running.get().doc.asSource();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransformerException("interrupted while waiting for " + uri);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransformerException)
+                throw (TransformerException) cause;
+            throw new TransformerException(cause);
+        } finally {
+            if (running == task)
+                loading.remove(uri, task);
+        }
+    }
+
+    /**
+     * Load a document into memory, fetching and storing it on disk if it
+     * isn't there.
+     */
+    private Entry load(String uri, String href, String base, URIResolver resolver) throws TransformerException {
+        Path file = dir.resolve(uri.replaceAll("[^a-zA-Z0-9]", "_"));
+        try {
+            XdmNode doc;
+            if (Files.exists(file)) {
+                doc = Saxon.buildDocument(new StreamSource(file.toFile()));
+                logger.debug("Transformer resolver: loaded " + file + " from cache");
+            } else {
+                Source res = (resolver != null) ? resolver.resolve(href, base) : null;
+                if (res == null)
+                    res = new StreamSource(uri);
+                doc = Saxon.buildDocument(res);
+                Path part = Files.createTempFile(dir, file.getFileName().toString(), ".part");
+                try {
+                    Saxon.save(doc.asSource(), part.toFile());
+                    Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(part);
+                }
+                logger.debug("Transformer resolver: stored " + file + " in cache");
+            }
+            Entry entry = new Entry(doc, Files.size(file));
+            remember(uri, entry);
+            return entry;
+        } catch (SaxonApiException | IOException ex) {
+            throw new TransformerException("Cannot resolve " + uri, ex);
+        }
+    }
+
+    /**
+     * Keep a document in memory, forgetting the least recently used ones
+     * while the cache is too large.
+     */
+    private synchronized void remember(String uri, Entry entry) {
+        if (entry.size > maxSize)
+            return;
+        Entry old = documents.put(uri, entry);
+        if (old != null)
+            size -= old.size;
+        size += entry.size;
+        Iterator<Entry> i = documents.values().iterator();
+        while (size > maxSize && i.hasNext()) {
+            size -= i.next().size;
+            i.remove();
+        }
+    }
+}
@@ -18,10 +18,15 @@
 
 package nl.mpi.oai.harvester.action;
 
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.Configuration.CompareSkipVals;
 import nl.mpi.oai.harvester.control.FileSynchronization;
 import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.control.RecordArchive;
+import nl.mpi.oai.harvester.control.RecordStore;
 import nl.mpi.oai.harvester.control.Util;
 import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.utils.Fingerprint;
 import nl.mpi.oai.harvester.utils.MarkableFileInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,20 +39,27 @@ import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 /**
@@ -64,6 +76,45 @@ public class SaveAction implements Action {
     protected boolean history;
     protected String find;
     protected String replace;
+    protected boolean indent = true;
+    protected boolean reserialize = false;
+
+    /** Maximum size of a segment when records are kept in a record store, or 0 to save files */
+    protected long segmentSize = 0;
+
+    /** Kind of archive the records of each provider are packed in as well, or null */
+    protected RecordArchive.Format archive = null;
+
+    /** Writer threads records are handed to, shared by copies of this action, or null to write them here */
+    protected WriteBehind writeBehind = null;
+
+    /** Suffix of files being written */
+    private static final String PART = ".part";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /* Serializers and StAX factories are expensive to create, and are kept
+       for reuse by the thread that created them.
+     */
+    private static final ThreadLocal<Transformer> serializer = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("cannot create a serializer", e);
+        }
+    });
+
+    private static final ThreadLocal<XMLInputFactory2> inputFactory = ThreadLocal.withInitial(() -> {
+        XMLInputFactory2 factory = (XMLInputFactory2) XMLInputFactory2.newInstance();
+        factory.configureForConvenience();
+        return factory;
+    });
+
+    private static final ThreadLocal<XMLOutputFactory> outputFactory = ThreadLocal.withInitial(() -> {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        return factory;
+    });
 
     /**
      * Create a new save action.
@@ -88,43 +139,206 @@ public class SaveAction implements Action {
         return dir;
     }
     
+    /**
+     * Set whether records held as a tree are indented when saved. Records
+     * held as a stream are saved as they are.
+     *
+     * @param indent true to indent, the default
+     */
+    public void setIndent(boolean indent) {
+        this.indent = indent;
+    }
+
+    /**
+     * Set whether records held as a stream are parsed and serialized again
+     * when saved. By default their bytes are copied as they are: nothing
+     * has modified such a record since it was received, as actions that
+     * change a record turn it into a tree.
+     *
+     * @param reserialize true to serialize the records again
+     */
+    public void setReserialize(boolean reserialize) {
+        this.reserialize = reserialize;
+    }
+
+    /**
+     * Keep the records in a record store instead of a file per record.
+     * The store is kept in the directory the files would be saved in, and
+     * the key of a record is the name its file would have.
+     *
+     * @param segmentSize maximum size of a segment file in bytes
+     */
+    public void setStore(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Check if the records are kept in a record store.
+     *
+     * @return true if they are, false if they are saved as files
+     */
+    public boolean isStore() {
+        return segmentSize > 0;
+    }
+
+    /**
+     * Also pack the records of each provider in an archive, next to the
+     * directory of the provider or, when not grouped by provider, in the
+     * output directory. The archive is finished when the harvest of the
+     * provider is done.
+     *
+     * @param archive the kind of archive, or null for none
+     */
+    public void setArchive(RecordArchive.Format archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Check if records are written to their files as they are saved, so
+     * other actions may write the files for this one. Saves to an error
+     * directory remove their files again and are left to this action.
+     *
+     * @return true if this action saves the records as files only
+     */
+    public boolean writesFiles() {
+        return !isStore() && archive == null && writeBehind == null
+            && !dir.toString().endsWith("error");
+    }
+
+    /**
+     * Hand the records over to writer threads of their own, instead of
+     * writing them on the harvesting thread. Copies of this action share
+     * the writer threads.
+     *
+     * @param threads number of writer threads
+     * @param capacity number of records that may wait to be written
+     * before saving blocks
+     * @param sync whether to force each batch of records to disk before
+     * moving it into place
+     */
+    public void setWriteBehind(int threads, int capacity, boolean sync) {
+        this.writeBehind = new WriteBehind(threads, capacity, sync);
+    }
+
+    /**
+     * Stop the writer threads of this action and its copies, once the
+     * records handed to them are written. Called when no harvest uses the
+     * action any more.
+     */
+    public void stopWriteBehind() {
+        if (writeBehind != null)
+            writeBehind.shutdown();
+    }
+
+    /**
+     * Wait until the records of a provider handed to writer threads are
+     * written.
+     *
+     * @param provider the provider
+     * @return the number of records that could not be written
+     */
+    public static int awaitWrites(Provider provider) {
+        return WriteBehind.await(provider);
+    }
+
     @Override
     public boolean perform(List<Metadata> records) {
 
         for (Metadata record : records) {
+            byte[] bytes = null;
+            if (archive != null) {
+                try {
+                    bytes = serialize(record);
+                    Path location = archiveLocation(record.getOrigin().getName());
+                    RecordArchive.get(record.getOrigin(), location, archive)
+                            .add(Util.toFileFormat(mapIdtoFilename(record.getId()), suffix), record.getId(), bytes);
+                } catch (TransformerException | IOException | XMLStreamException ex) {
+                    logger.error("Cannot archive record " + record.getId(), ex);
+                    return false;
+                }
+            }
+            if (isStore()) {
+                if (!store(record, bytes))
+                    return false;
+                continue;
+            }
             OutputStream os = null;
             XMLEventReader reader = null;
             XMLEventWriter writer = null;
             Path path = null;
+            Path part = null;
             try {
-                path = chooseLocation(record);
-                if(history){
-                    FileSynchronization.saveToHistoryFile(record.getOrigin(), path, FileSynchronization.Operation.INSERT);
-                    FileSynchronization.getProviderStatistic(record.getOrigin()).incRecordCount();
+                path = prepare(record);
+
+                // an unchanged record is not written again
+                String fingerprint = fingerprint(record);
+                if (fingerprint != null && fingerprint.equals(Fingerprint.stored(path))) {
+                    logger.debug("No change detected for " + record.getId() + ", keeping " + path);
+                    continue;
+                }
+
+                if (writeBehind != null) {
+                    if (bytes == null)
+                        bytes = serialize(record);
+                    try {
+                        writeBehind.submit(record.getOrigin(), record.getId(), path, bytes, fingerprint);
+                    } catch (IllegalStateException ex) {
+                        // the writer threads are shut down
+                        logger.error("Cannot save record " + record.getId(), ex);
+                        Path errpath = path.resolveSibling(path.getFileName() + ".error");
+                        Files.write(errpath, bytes);
+                        logger.debug("saved XML stream with errors[" + errpath + "]");
+                        return false;
+                    }
+                    continue;
                 }
-                os = Files.newOutputStream(path);
-                if (record.hasDoc()) {
-                    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-                    Transformer transformer = transformerFactory.newTransformer();
-                    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+
+                part = partOf(path);
+                if (bytes != null) {
+                    // already serialized for the archive
+                    Files.write(part, bytes);
+                    commit(part, path);
+                    if (fingerprint != null)
+                        Fingerprint.store(path, fingerprint);
+                    if (offload && !record.hasDoc()) {
+                        record.setStream(new MarkableFileInputStream(new FileInputStream(path.toFile())));
+                        logger.debug("offloaded XML stream[" + path + "]");
+                    }
+                    logger.debug("saved XML record[" + path + "]");
+                } else if (record.hasDoc()) {
+                    os = new BufferedOutputStream(Files.newOutputStream(part), BUFFER_SIZE);
+                    Transformer transformer = serializer.get();
+                    transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
 
                     DOMSource source = new DOMSource(record.getDoc());
                     StreamResult result = new StreamResult(os);
 
                     transformer.transform(source, result);
+                    os.close();
+                    os = null;
+                    commit(part, path);
+                    if (fingerprint != null)
+                        Fingerprint.store(path, fingerprint);
 
-                    logger.debug("saved XML doc[" + path + "] with [" + XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc()) + "] nodes");
+                    if (logger.isDebugEnabled())
+                        logger.debug("saved XML doc[" + path + "] with [" + XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc()) + "] nodes");
                 } else {
-                    XMLInputFactory2 xmlInputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
-                    xmlInputFactory.configureForConvenience();
-                    XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-                    xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+                    if (reserialize) {
+                        os = new BufferedOutputStream(Files.newOutputStream(part), BUFFER_SIZE);
+                        reader = inputFactory.get().createXMLEventReader(record.getStream());
+                        writer = outputFactory.get().createXMLEventWriter(os);
 
-                    reader = xmlInputFactory.createXMLEventReader(record.getStream());
-                    writer = xmlOutputFactory.createXMLEventWriter(os);
-
-                    writer.add(reader);
-                    writer.close();
+                        writer.add(reader);
+                        writer.close();
+                        writer = null;
+                        os.close();
+                        os = null;
+                    } else {
+                        copy(record.getStream(), part);
+                    }
+                    commit(part, path);
+                    if (fingerprint != null)
+                        Fingerprint.store(path, fingerprint);
                     if (offload) {
                         record.setStream(new MarkableFileInputStream(new FileInputStream(path.toFile())));
                         logger.debug("offloaded XML stream[" + path + "]");
@@ -132,6 +346,10 @@ public class SaveAction implements Action {
 
                     logger.debug("saved XML stream[" + path + "]");
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while saving record " + record.getId());
+                return false;
             } catch (TransformerException | IOException | XPathExpressionException | XMLStreamException ex) {
                 Path errpath = FileSystems.getDefault().getPath(path.getParent().toString(), path.getName(path.getNameCount()-1).toString() + ".error");
                 InputStream rStream = record.getStream();
@@ -148,25 +366,17 @@ public class SaveAction implements Action {
                 return false;
             } finally {
                 try {
+                    if (writer != null)
+                        writer.close();
                     if (os != null)
                         os.close();
                     if (reader != null)
                         reader.close();
-                    if (writer != null)
-                        writer.close();
                 } 
                 catch (IOException | XMLStreamException e) {
                 }
                 finally {
-                    if (dir.toString().endsWith("error")) {
-                        try
-                        {
-                            Files.deleteIfExists(path);
-                        }
-                        catch (IOException e)
-                        {
-                        }
-                    }
+                    cleanup(part, path);
                 }
             }
         }
@@ -174,6 +384,227 @@ public class SaveAction implements Action {
         return true;
     }
 
+    /**
+     * Choose the file to save a record in, and add it to the history if
+     * the history is kept.
+     *
+     * @param record the record
+     * @return the file
+     * @throws IOException the file could not be chosen
+     */
+    Path prepare(Metadata record) throws IOException {
+        Path path = chooseLocation(record);
+        addToHistory(record, path);
+        return path;
+    }
+
+    private void addToHistory(Metadata record, Path path) {
+        if(history){
+            FileSynchronization.saveToHistoryFile(record.getOrigin(), path, FileSynchronization.Operation.INSERT);
+            FileSynchronization.getProviderStatistic(record.getOrigin()).incRecordCount();
+        }
+    }
+
+    /**
+     * Serialize a record the way it is saved.
+     *
+     * @param record the record
+     * @return the bytes of the record
+     */
+    private byte[] serialize(Metadata record) throws TransformerException, IOException, XMLStreamException {
+        if (record.hasDoc()) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Transformer transformer = serializer.get();
+            transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+            transformer.transform(new DOMSource(record.getDoc()), new StreamResult(os));
+            return os.toByteArray();
+        } else if (reserialize) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            XMLEventReader reader = inputFactory.get().createXMLEventReader(record.getStream());
+            XMLEventWriter writer = outputFactory.get().createXMLEventWriter(os);
+            writer.add(reader);
+            writer.close();
+            reader.close();
+            return os.toByteArray();
+        } else {
+            return record.getStream().readAllBytes();
+        }
+    }
+
+    /**
+     * Save a record in the record store of the directory it would be
+     * saved in.
+     *
+     * @param record the record
+     * @param bytes the serialized record, or null if not serialized yet
+     * @return true if the record was stored or didn't change
+     */
+    private boolean store(Metadata record, byte[] bytes) {
+        try {
+            Path storeDir = chooseLocationDir(record.getOrigin().getName());
+            String key = Util.toFileFormat(mapIdtoFilename(record.getId()), suffix);
+            addToHistory(record, storeDir.resolve(key));
+            RecordStore store = RecordStore.open(storeDir, segmentSize);
+            if (bytes == null)
+                bytes = serialize(record);
+
+            String fingerprint = fingerprint(record);
+            if (fingerprint != null) {
+                byte[] existing = store.get(key);
+                try {
+                    if (existing != null && fingerprint.equals(Fingerprint.of(new ByteArrayInputStream(existing)))) {
+                        logger.debug("No change detected for " + record.getId() + ", keeping it in " + store);
+                        return true;
+                    }
+                } catch (XMLStreamException e) {
+                    // the stored version is replaced
+                }
+            }
+            store.put(key, bytes);
+            logger.debug("stored XML record[" + key + "] in " + store);
+            return true;
+        } catch (TransformerException | IOException | XMLStreamException ex) {
+            logger.error("Cannot store record " + record.getId(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Check if unchanged records are to be detected for the provider of a
+     * record, which is the case in compare mode.
+     *
+     * @param record the record
+     * @return true if the content of the record is to be compared
+     */
+    static boolean comparing(Metadata record) {
+        Provider provider = record.getOrigin();
+        return provider != null && provider.isCompareMode() == CompareSkipVals.COMPARE;
+    }
+
+    /**
+     * Get the fingerprint of a record, if unchanged records are to be
+     * detected for its provider.
+     *
+     * @param record the record
+     * @return the fingerprint, or null if not needed or the record is not
+     * well-formed
+     */
+    static String fingerprint(Metadata record) {
+        if (!comparing(record))
+            return null;
+        try {
+            return record.hasDoc()
+                    ? Fingerprint.of(record.getDoc())
+                    : Fingerprint.of(record.getStream());
+        } catch (TransformerException | XMLStreamException e) {
+            logger.debug("Cannot compute the fingerprint of " + record.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Move a record written by another action into place, like this
+     * action would. In compare mode, an unchanged record is not moved, and
+     * the existing file is kept; the record written is then left for
+     * cleanup.
+     *
+     * @param record the record
+     * @param part the file written
+     * @param path the final location
+     * @throws IOException the file could not be moved
+     */
+    static void commit(Metadata record, Path part, Path path) throws IOException {
+        String fingerprint = null;
+        if (comparing(record)) {
+            try {
+                fingerprint = Fingerprint.of(part);
+            } catch (XMLStreamException e) {
+                logger.debug("Cannot compute the fingerprint of " + record.getId(), e);
+            }
+            if (fingerprint != null && fingerprint.equals(Fingerprint.stored(path))) {
+                logger.debug("No change detected for " + record.getId() + ", keeping " + path);
+                return;
+            }
+        }
+        commit(part, path);
+        if (fingerprint != null)
+            Fingerprint.store(path, fingerprint);
+    }
+
+    /**
+     * Get the file a record is written to before it is moved into place,
+     * next to the final file, so that one is never seen half written.
+     *
+     * @param path the final location
+     * @return the file to write
+     */
+    static Path partOf(Path path) {
+        return path.resolveSibling(path.getFileName() + PART);
+    }
+
+    /**
+     * Remove what is left of an attempt to save a record.
+     *
+     * @param part the file written, or null
+     * @param path the final location, or null
+     */
+    void cleanup(Path part, Path path) {
+        try
+        {
+            // left behind only if the record could not be saved
+            if (part != null)
+                Files.deleteIfExists(part);
+            if (path != null && dir.toString().endsWith("error"))
+                Files.deleteIfExists(path);
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * Copy the bytes of a stream to a file. A stream backed by a file is
+     * copied channel to channel, leaving the copying to the operating
+     * system where it can.
+     *
+     * @param in the stream, positioned at its start
+     * @param part the file to write
+     * @throws IOException the stream could not be copied
+     */
+    private static void copy(InputStream in, Path part) throws IOException {
+        if (in instanceof MarkableFileInputStream) {
+            FileChannel source = ((MarkableFileInputStream) in).getChannel();
+            try (FileChannel target = FileChannel.open(part, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = source.position();
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+        } else {
+            try (OutputStream out = Files.newOutputStream(part)) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Move a completely written file into place, replacing an earlier
+     * version of it.
+     *
+     * @param part the file written
+     * @param path the final location
+     * @throws IOException the file could not be moved
+     */
+    static void commit(Path part, Path path) throws IOException {
+        try {
+            Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Simply choose location to save in.
      *
@@ -196,12 +627,35 @@ public class SaveAction implements Action {
         return dir.placeNewFile(Util.toFileFormat(mapIdtoFilename(id), suffix));
     }
 
+    /**
+     * Find the file a record was saved in, without choosing a new
+     * location.
+     *
+     * @param provName name of the provider
+     * @param id identifier of the record
+     * @return path to the file, which may not exist
+     * @throws IOException something went wrong when finding the directory
+     */
+    public Path locateFile(String provName, String id) throws IOException {
+        return dir.locate(Util.toFileFormat(mapIdtoFilename(id), suffix));
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("save to ");
         sb.append(dir);
         if (!suffix.isEmpty())
             sb.append(" using suffix ").append(suffix);
+        if (!indent)
+            sb.append(" without indentation");
+        if (reserialize)
+            sb.append(" serializing streams again");
+        if (isStore())
+            sb.append(" in a record store");
+        if (archive != null)
+            sb.append(" archived as ").append(archive.getExtension().substring(1));
+        if (writeBehind != null)
+            sb.append(" written behind by ").append(writeBehind);
         return sb.toString();
     }
 
@@ -225,13 +679,31 @@ public class SaveAction implements Action {
     public Action clone() {
         // This is a shallow copy, resulting in multiple references to a single
         // OutputDirectory, which is as intended.
-        return new SaveAction(dir, suffix, offload, history, find, replace);
+        SaveAction copy = new SaveAction(dir, suffix, offload, history, find, replace);
+        copy.setIndent(indent);
+        copy.setReserialize(reserialize);
+        copy.setStore(segmentSize);
+        copy.setArchive(archive);
+        copy.writeBehind = writeBehind;
+        return copy;
     }
 
     public Path chooseLocationDir(String provName) throws IOException
     {
         return dir.getBase();
     }
+
+    /**
+     * Choose the location of the archive of a provider's records.
+     *
+     * @param provName name of the provider
+     * @return path to the archive
+     * @throws IOException something went wrong when creating the directory
+     */
+    protected Path archiveLocation(String provName) throws IOException
+    {
+        return dir.getBase().resolve(Util.toFileFormat(provName) + archive.getExtension());
+    }
     
     protected String mapIdtoFilename(String id)
     {
@@ -25,9 +25,6 @@ import nl.mpi.oai.harvester.metadata.Metadata;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * This class represents the action of saving a record onto the file system
@@ -36,10 +33,6 @@ import java.util.Map;
  * @author Lari Lampen (MPI-PL)
  */
 public class SaveGroupedAction extends SaveAction implements Action {
-    /**
-     * The subdirectories are stored in a hash indexed by provider.
-     */
-    private final Map<Provider, OutputDirectory> locations;
 
     /**
      * Create a new save action where output files are grouped in directories
@@ -50,28 +43,27 @@ public class SaveGroupedAction extends SaveAction implements Action {
      */
     public SaveGroupedAction(OutputDirectory dir, String suffix, boolean offload, boolean history, String find, String replace) {
 	super(dir, suffix, offload, history, find, replace);
-	locations = Collections.synchronizedMap(new HashMap<>());
     }
 
     /**
      * Copy constructor that makes a SHALLOW copy. Thus the copy shares the
-     * set of subdirectories with the given action.
+     * output directory, and with it the subdirectories, with the given
+     * action.
      */
     private SaveGroupedAction(SaveGroupedAction sga) {
 	super(sga.dir, sga.suffix, sga.offload, sga.history, sga.find, sga.replace);
-	locations = sga.locations;
+	indent = sga.indent;
+	reserialize = sga.reserialize;
+	segmentSize = sga.segmentSize;
+	archive = sga.archive;
+	writeBehind = sga.writeBehind;
 
     }
 
     @Override
     protected Path chooseLocation(Metadata metadata) throws IOException {
         Provider prov = metadata.getOrigin();
-        if (!locations.containsKey(prov)) {
-            OutputDirectory provDir = dir.makeSubdirectory(Util.toFileFormat(prov.getName()));
-            locations.put(prov, provDir);
-        }
-        String provName = prov.getName();
-        return chooseLocation(provName, metadata.getId());
+        return chooseLocation(prov.getName(), metadata.getId());
     }
 
     @Override
@@ -80,12 +72,24 @@ public class SaveGroupedAction extends SaveAction implements Action {
         return provDir.placeNewFile(Util.toFileFormat(mapIdtoFilename(id), suffix));
     }
 
+    @Override
+    public Path locateFile(String provName, String id) throws IOException {
+        OutputDirectory provDir = dir.makeSubdirectory(Util.toFileFormat(provName));
+        return provDir.locate(Util.toFileFormat(mapIdtoFilename(id), suffix));
+    }
+
     @Override
     public Path chooseLocationDir(String provName) throws IOException {
         OutputDirectory provDir = dir.makeSubdirectory(Util.toFileFormat(provName));
         return provDir.getBase();
     }
 
+    @Override
+    protected Path archiveLocation(String provName) throws IOException {
+        Path provDir = chooseLocationDir(provName);
+        return provDir.resolveSibling(provDir.getFileName() + archive.getExtension());
+    }
+
     @Override
     public String toString() {
 	return super.toString() + " grouped by provider";
@@ -101,7 +105,9 @@ public class SaveGroupedAction extends SaveAction implements Action {
     public boolean equals(Object o) {
 	if (o instanceof SaveGroupedAction) {
 	    SaveGroupedAction a = (SaveGroupedAction)o;
-	    return dir.equals(a.dir) && suffix.equals(a.suffix);
+	    return dir.equals(a.dir) && suffix.equals(a.suffix) && indent == a.indent
+		&& reserialize == a.reserialize && segmentSize == a.segmentSize
+		&& archive == a.archive && writeBehind == a.writeBehind;
 	}
 	return false;
     }
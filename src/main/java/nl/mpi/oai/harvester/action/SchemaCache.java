@@ -0,0 +1,399 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of compiled XML schemas, by the schema location records give.
+ * A Schema is thread-safe, so each one is compiled once and used by every
+ * thread; a location requested by several threads at once is compiled by
+ * one of them while the others wait. A schema that fails to compile, for
+ * example because a document could not be downloaded, is tried again
+ * after a minute; until then, records naming it are not validated.
+ * <br><br>
+ *
+ * With a cache directory, the schema documents, and the documents they
+ * include or import, are downloaded once and kept in that directory, so
+ * later runs compile them without going to the network. Documents are
+ * written under a temporary name and moved into place. Only a document
+ * that was obtained successfully, following redirects, and that is an XML
+ * schema is kept; when a schema fails to compile, the documents it was
+ * compiled from are removed, so they are downloaded again.
+ */
+class SchemaCache {
+
+    private static final Logger logger = LogManager.getLogger(SchemaCache.class);
+
+    /** The caches, by directory; the empty string for no directory */
+    private static final Map<String, SchemaCache> caches = new ConcurrentHashMap<>();
+
+    /** Milliseconds before a schema that failed to compile is tried again */
+    static final long RETRY_DELAY = 60 * 1000;
+
+    /** The cache directory, or null to keep nothing on disk */
+    private final Path dir;
+
+    private final long retryDelay;
+
+    /** The schemas, by location; a failed compilation yields null */
+    private final Map<String, FutureTask<Schema>> schemas = new ConcurrentHashMap<>();
+
+    /** When compiling failed last, by location */
+    private final Map<String, Long> failures = new ConcurrentHashMap<>();
+
+    /** Maximum number of redirects followed for a document */
+    private static final int MAX_REDIRECTS = 5;
+
+    /**
+     * Create a cache, not shared with anyone else.
+     *
+     * @param dir the cache directory, or null to keep nothing on disk
+     * @param retryDelay milliseconds before a schema that failed to
+     * compile is tried again
+     */
+    SchemaCache(Path dir, long retryDelay) {
+        this.dir = dir;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Get the cache using a directory.
+     *
+     * @param dir the cache directory, or null to keep nothing on disk
+     * @return the cache
+     */
+    static SchemaCache get(Path dir) {
+        String key = (dir != null) ? dir.toAbsolutePath().toString() : "";
+        return caches.computeIfAbsent(key, k -> new SchemaCache(dir, RETRY_DELAY));
+    }
+
+    /**
+     * Get the schema for a location, compiling it if this is the first
+     * request.
+     *
+     * @param location the value of xsi:schemaLocation, pairs of a
+     * namespace and a URL, or of xsi:noNamespaceSchemaLocation, a URL
+     * @return the schema, or null if it can't be compiled
+     */
+    Schema get(String location) {
+        Long failed = failures.get(location);
+        if (failed != null && System.currentTimeMillis() - failed < retryDelay)
+            return null;
+
+        FutureTask<Schema> task = new FutureTask<>(() -> compile(location));
+        FutureTask<Schema> existing = schemas.putIfAbsent(location, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+        Schema schema;
+        try {
+            schema = existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // compile reports its own failures
+            schema = null;
+        }
+        if (schema == null) {
+            // the failure may be passing, like a network error
+            if (schemas.remove(location, existing))
+                failures.put(location, System.currentTimeMillis());
+        } else if (failed != null) {
+            failures.remove(location);
+        }
+        return schema;
+    }
+
+    private Schema compile(String location) {
+        String[] tokens = location.trim().split("\\s+");
+        List<Source> sources = new ArrayList<>();
+        // the cached documents the schema is compiled from
+        List<Path> used = new ArrayList<>();
+        try {
+            if (tokens.length == 1) {
+                sources.add(source(tokens[0], used));
+            } else {
+                for (int i = 1; i < tokens.length; i += 2)
+                    sources.add(source(tokens[i], used));
+            }
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            if (dir != null)
+                factory.setResourceResolver(new CachingResolver(used));
+            Schema schema = factory.newSchema(sources.toArray(new Source[0]));
+            logger.info("compiled schema " + location);
+            return schema;
+        } catch (IOException | SAXException ex) {
+            logger.error("Cannot compile schema " + location, ex);
+            // a document may be what's wrong; get it again next time
+            for (Path file : used) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("Cannot remove " + file, e);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get a schema document, from the cache directory if there is one.
+     * The system id remains the original URL, so relative references in
+     * the document resolve as usual.
+     */
+    private Source source(String uri, List<Path> used) throws IOException {
+        if (dir == null)
+            return new StreamSource(uri);
+        return new StreamSource(new ByteArrayInputStream(Files.readAllBytes(fetch(uri, used))), uri);
+    }
+
+    /**
+     * Get the file holding a document in the cache directory, downloading
+     * it if it isn't there yet.
+     *
+     * @param uri the location of the document
+     * @param used the files used so far, the file is added to
+     */
+    private Path fetch(String uri, List<Path> used) throws IOException {
+        Path file = dir.resolve(uri.replaceAll("[^a-zA-Z0-9]", "_"));
+        synchronized (used) {
+            used.add(file);
+        }
+        if (!Files.exists(file)) {
+            Path part = Files.createTempFile(dir, file.getFileName().toString(), ".part");
+            try {
+                try (InputStream in = open(uri)) {
+                    Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+                }
+                checkSchema(uri, part);
+                Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                logger.debug("stored schema document " + uri + " in " + file);
+            } finally {
+                Files.deleteIfExists(part);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Open a document, following redirects, also from http to https,
+     * which the URL connection itself doesn't.
+     *
+     * @param uri the location of the document
+     * @return the content
+     * @throws IOException the document can't be obtained
+     */
+    static InputStream open(String uri) throws IOException {
+        URL url = new URL(uri);
+        for (int redirects = 0; ; redirects++) {
+            URLConnection connection = url.openConnection();
+            if (!(connection instanceof HttpURLConnection))
+                return connection.getInputStream();
+            HttpURLConnection http = (HttpURLConnection) connection;
+            http.setInstanceFollowRedirects(false);
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK)
+                return http.getInputStream();
+            String location = http.getHeaderField("Location");
+            http.disconnect();
+            if (code >= 300 && code < 400 && location != null && redirects < MAX_REDIRECTS) {
+                url = new URL(url, location);
+                continue;
+            }
+            throw new IOException("Request for " + uri + " returned HTTP code " + code);
+        }
+    }
+
+    /**
+     * Check that a downloaded document is an XML schema, and not, for
+     * example, an error page.
+     *
+     * @param uri the location of the document
+     * @param file the document
+     * @throws IOException the document is not a schema
+     */
+    static void checkSchema(String uri, Path file) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = Files.newInputStream(file)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT)
+                    ;
+                if (!reader.isStartElement())
+                    throw new IOException(uri + " holds no element");
+                if (!"schema".equals(reader.getLocalName())
+                        || !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(reader.getNamespaceURI()))
+                    throw new IOException(uri + " is not an XML schema but " + reader.getName());
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(uri + " is not an XML document", e);
+        }
+    }
+
+    /**
+     * Resolves the documents a schema includes or imports through the
+     * cache directory.
+     */
+    private class CachingResolver implements LSResourceResolver {
+
+        private final List<Path> used;
+
+        CachingResolver(List<Path> used) {
+            this.used = used;
+        }
+
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI,
+                String publicId, String systemId, String baseURI) {
+            if (systemId == null)
+                return null;
+            try {
+                String uri = (baseURI != null)
+                        ? new URL(new URL(baseURI), systemId).toString()
+                        : systemId;
+                return new Input(publicId, uri, Files.readAllBytes(fetch(uri, used)));
+            } catch (IOException e) {
+                logger.warn("Cannot cache schema document " + systemId + ", reading it directly", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A cached schema document.
+     */
+    private static class Input implements LSInput {
+        private String publicId;
+        private String systemId;
+        private final byte[] bytes;
+
+        Input(String publicId, String systemId, byte[] bytes) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return null;
+        }
+
+        @Override
+        public void setCharacterStream(Reader characterStream) {
+        }
+
+        @Override
+        public InputStream getByteStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public void setByteStream(InputStream byteStream) {
+        }
+
+        @Override
+        public String getStringData() {
+            return null;
+        }
+
+        @Override
+        public void setStringData(String stringData) {
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return null;
+        }
+
+        @Override
+        public void setBaseURI(String baseURI) {
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public void setEncoding(String encoding) {
+        }
+
+        @Override
+        public boolean getCertifiedText() {
+            return false;
+        }
+
+        @Override
+        public void setCertifiedText(boolean certifiedText) {
+        }
+    }
+}
@@ -19,8 +19,10 @@
 package nl.mpi.oai.harvester.action;
 
 import net.sf.saxon.s9api.DOMDestination;
+import net.sf.saxon.s9api.Destination;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltTransformer;
@@ -30,27 +32,55 @@ import nl.mpi.tla.util.SaxonListener;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
 import net.sf.saxon.s9api.MessageListener;
@@ -65,21 +95,62 @@ import net.sf.saxon.s9api.XsltExecutable;
 public class TransformAction implements Action {
     private static final Logger logger = LogManager.getLogger(TransformAction.class);
     
-    /** The XSL executable. */
-    private final XsltExecutable executable;
+    /** The XSL executable, shared by this action and all its clones. */
+    private final Stylesheet stylesheet;
 
     /** The file containing the XSL transformation. */
     private String xsltFile;
 
     /** The directory containing cached resources. */
     private Path cacheDir;
+
+    /** Maximum size in bytes of the cached resources kept in memory. */
+    private long cacheSize = 16L << 20;
     
     /** A standard semaphore is used to track the number of running transforms. */
     private Semaphore semaphore;
+
+    /** Number of semaphores created so far */
+    private static final AtomicInteger semaphores = new AtomicInteger();
+
+    /** Rank of the semaphore; a chain of transforms acquires semaphores
+        in order of rank, so chains sharing them can't deadlock. */
+    private final int rank;
     
     /** The configuration */
     private Node config;
 
+    /** The configuration wrapped for use as stylesheet parameter, shared
+        by this action and all its clones. */
+    private final XdmNode configParam;
+
+    /** The transformer of this action, loaded on first use. An action is
+        used by one thread at a time, so the transformer is reused for
+        every record the action processes. */
+    private XsltTransformer transformer = null;
+
+    /** Builder for the result documents, created on first use. */
+    private DocumentBuilder builder = null;
+
+    /** Cache of transform results, or null if results aren't cached. */
+    private TransformCache resultCache = null;
+
+    /** Hash of the stylesheet, its modules, the cached documents and the
+        configuration of the action, identifying the results of this
+        action in the result cache. */
+    private String identity = null;
+
+    /** Hash of the configuration of each provider, by URL, adding to the
+        identity of the results for the records of that provider. */
+    private Map<String, String> providerConfig = Collections.emptyMap();
+
+    private static final String XSL_NS = "http://www.w3.org/1999/XSL/Transform";
+
+    private static final QName CONFIG = new QName("config");
+    private static final QName PROVIDER_NAME = new QName("provider_name");
+    private static final QName PROVIDER_URI = new QName("provider_uri");
+    private static final QName RECORD_IDENTIFIER = new QName("record_identifier");
+
     /** 
      * Create a new transform action using the specified XSLT. 
      * 
@@ -113,67 +184,407 @@ public class TransformAction implements Action {
 	      this.xsltFile = xsltFile;
         this.cacheDir = cacheDir;
         this.semaphore = semaphore;
-        Source xslSource = null;
-        if (xsltFile.startsWith("http:") || xsltFile.startsWith("https:"))
-            xslSource = new StreamSource(xsltFile);
-        else
-            xslSource = new StreamSource(new FileInputStream(xsltFile),xsltFile);
+        this.rank = semaphores.incrementAndGet();
+        this.configParam = Saxon.wrapNode(conf.getOwnerDocument());
+        // compiling is deferred until a record needs the stylesheet, but a
+        // missing local file is still reported right away
+        if (!isRemote(xsltFile) && !Files.isReadable(Paths.get(xsltFile)))
+            throw new FileNotFoundException(xsltFile);
+        this.stylesheet = new Stylesheet(xsltFile);
+    }
 
-        executable = Saxon.buildTransformer(Saxon.buildDocument(xslSource));
-        
+    /**
+     * Create a clone of a transform action. The clone shares the
+     * stylesheet, compiled or not, with the original.
+     *
+     * @param original the action to copy
+     */
+    private TransformAction(TransformAction original) {
+        this.config = original.config;
+        this.xsltFile = original.xsltFile;
+        this.cacheDir = original.cacheDir;
+        this.cacheSize = original.cacheSize;
+        this.semaphore = original.semaphore;
+        this.rank = original.rank;
+        this.stylesheet = original.stylesheet;
+        this.configParam = original.configParam;
+        this.resultCache = original.resultCache;
+        this.identity = original.identity;
+        this.providerConfig = original.providerConfig;
+    }
+
+    /**
+     * Set the amount of memory for cached resources. Resources used less
+     * recently are only kept on disk.
+     *
+     * @param megabytes size of the resources in memory, measured on disk
+     */
+    public void setCacheSize(int megabytes) {
+        this.cacheSize = (long) megabytes << 20;
+    }
+
+    /**
+     * Keep the results of this action in a cache, and reuse them for
+     * records that did not change. A result is identified by the input
+     * record, its provider and identifier, and by what the stylesheet
+     * sees: the contents of the stylesheet and of the modules it imports
+     * or includes, fetched if they are remote, the documents kept in the
+     * resource cache of the action, the configuration of the action
+     * itself and that of the provider of the record. Other changes to the
+     * configuration keep the results.
+     *
+     * @param action the configuration of the action
+     * @param dir the cache directory
+     * @param megabytes maximum size of the cache
+     * @param days number of days a result is kept without being used
+     */
+    public void setResultCache(Node action, Path dir, int megabytes, int days) {
+        try {
+            List<byte[]> parts = new ArrayList<>();
+            URI uri = isRemote(xsltFile) ? new URI(xsltFile) : Paths.get(xsltFile).toUri();
+            addModules(uri, new HashSet<>(), parts);
+            if (cacheDir != null)
+                addCachedDocuments(cacheDir, parts);
+            parts.add(serialize(action));
+            identity = TransformCache.hash(parts.toArray(new byte[0][]));
+
+            Map<String, String> providers = new HashMap<>();
+            NodeList nodes = config.getOwnerDocument().getElementsByTagName("provider");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element provider = (Element) nodes.item(i);
+                providers.merge(provider.getAttribute("url"),
+                        TransformCache.hash(serialize(provider)),
+                        (a, b) -> a + b);
+            }
+            providerConfig = providers;
+
+            resultCache = TransformCache.get(dir, (long) megabytes << 20, days * 24L * 3600 * 1000);
+        } catch (IOException | TransformerException | XMLStreamException | URISyntaxException ex) {
+            logger.error("Cannot cache the results of " + this, ex);
+        }
+    }
+
+    /**
+     * Add the contents of a stylesheet, and of the modules it imports or
+     * includes, to the parts identifying a transform.
+     *
+     * @param uri the absolute URI of the stylesheet
+     * @param seen the URIs of the modules added already
+     * @param parts the parts to add to
+     */
+    static void addModules(URI uri, Set<URI> seen, List<byte[]> parts)
+            throws IOException, XMLStreamException, URISyntaxException {
+        uri = uri.normalize();
+        if (!seen.add(uri))
+            return;
+        byte[] bytes;
+        try (InputStream in = uri.toURL().openStream()) {
+            bytes = in.readAllBytes();
+        }
+        parts.add(uri.toString().getBytes(StandardCharsets.UTF_8));
+        parts.add(bytes);
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(bytes));
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamReader.START_ELEMENT
+                        && XSL_NS.equals(reader.getNamespaceURI())
+                        && ("import".equals(reader.getLocalName())
+                            || "include".equals(reader.getLocalName()))) {
+                    String href = reader.getAttributeValue(null, "href");
+                    if (href != null)
+                        addModules(uri.resolve(new URI(href)), seen, parts);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add the documents in a resource cache directory to the parts
+     * identifying a transform. A document stays in the cache as it was
+     * fetched, so a change shows when it is removed or fetched again.
+     *
+     * @param dir the resource cache directory
+     * @param parts the parts to add to
+     */
+    private static void addCachedDocuments(Path dir, List<byte[]> parts) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(f -> Files.isRegularFile(f)
+                    && !f.getFileName().toString().endsWith(".part"))
+                    .sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            parts.add(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            parts.add(TransformCache.hash(Files.readAllBytes(file)).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] serialize(Node node) throws TransformerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(
+                new DOMSource(node), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static boolean isRemote(String xsltFile) {
+        return xsltFile.startsWith("http:") || xsltFile.startsWith("https:");
+    }
+
+    /**
+     * A stylesheet compiled on first use. An XsltExecutable is thread-safe,
+     * so one compilation serves every clone of the action; each clone
+     * loads its own transformer from it.
+     */
+    static class Stylesheet {
+
+        /** Milliseconds before a stylesheet that failed to compile is tried again */
+        static final long RETRY_DELAY = 60 * 1000;
+
+        private final String xsltFile;
+
+        private final long retryDelay;
+
+        private XsltExecutable executable = null;
+
+        /** When compiling failed last, or 0 */
+        private long failed = 0;
+
+        Stylesheet(String xsltFile) {
+            this(xsltFile, RETRY_DELAY);
+        }
+
+        Stylesheet(String xsltFile, long retryDelay) {
+            this.xsltFile = xsltFile;
+            this.retryDelay = retryDelay;
+        }
+
+        /**
+         * Get the compiled stylesheet, compiling it if this is the first
+         * request. A stylesheet that fails to compile, for instance
+         * because it could not be fetched, is tried again after a delay.
+         *
+         * @return the executable, or null if the stylesheet can't be compiled
+         */
+        synchronized XsltExecutable get() {
+            if (executable == null && System.currentTimeMillis() - failed >= retryDelay) {
+                try {
+                    Source xslSource;
+                    if (isRemote(xsltFile))
+                        xslSource = new StreamSource(xsltFile);
+                    else
+                        xslSource = new StreamSource(new FileInputStream(xsltFile),xsltFile);
+                    executable = Saxon.buildTransformer(Saxon.buildDocument(xslSource));
+                    failed = 0;
+                    logger.info("compiled stylesheet " + xsltFile);
+                } catch (FileNotFoundException | SaxonApiException ex) {
+                    failed = System.currentTimeMillis();
+                    logger.error("Cannot compile stylesheet " + xsltFile, ex);
+                }
+            }
+            return executable;
+        }
+    }
+
+    /**
+     * Get the transformer of this action, loading it if this is the first
+     * record. The listener, the resolver and the config parameter are set
+     * once; the other parameters are set for each record.
+     *
+     * @return the transformer, or null if the stylesheet can't be compiled
+     */
+    private XsltTransformer getTransformer() {
+        if (transformer == null) {
+            XsltExecutable executable = stylesheet.get();
+            if (executable == null)
+                return null;
+            transformer = executable.load();
+
+            TransformActionListener listener = new TransformActionListener();
+            transformer.setErrorListener(listener);
+            transformer.setMessageListener(listener);
+
+            if (cacheDir != null) {
+                logger.debug("Setting the URLResolve to cache in "+cacheDir);
+                transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
+            }
+
+            transformer.setParameter(CONFIG, configParam);
+        }
+        return transformer;
     }
 
     @Override
     public boolean perform(List<Metadata> records) {
+        return performChain(Collections.singletonList(this), null, records);
+    }
+
+    /**
+     * Apply a chain of transform actions to the records in one pass. The
+     * output of each stylesheet is fed to the next one as it is produced;
+     * only the output of the last one is built as a document.
+     * <br><br>
+     *
+     * If the chain is followed by a save action, and nothing after that
+     * needs the records, the output of the last stylesheet is written
+     * straight to the file the save action would write, and the records
+     * are left as they are.
+     *
+     * @param chain the actions, in order, none of them held by another
+     * thread
+     * @param save the save action following the chain, or null
+     * @param records the records to transform
+     * @return true on success; false if a transform failed
+     */
+    static boolean performChain(List<TransformAction> chain, SaveAction save, List<Metadata> records) {
+        List<TransformAction> limited = new ArrayList<>();
+        for (TransformAction t : chain) {
+            if (t.semaphore != null)
+                limited.add(t);
+        }
+        limited.sort(Comparator.comparingInt(t -> t.rank));
+        TransformAction last = chain.get(chain.size() - 1);
+
+        // results are cached if every stylesheet in the chain caches them
+        TransformCache cache = chain.get(0).resultCache;
+        StringBuilder id = new StringBuilder();
+        for (TransformAction t : chain) {
+            if (t.resultCache == null)
+                cache = null;
+            id.append(t.identity).append(' ');
+        }
+        // a saved result is serialized as the save action says
+        id.append(save == null ? "record" : save.indent ? "save indent" : "save");
+        String identity = id.toString();
+
         for (Metadata record:records) {
+            int acquired = 0;
+            OutputStream os = null;
+            Path path = null;
+            Path part = null;
             try {
-                if (semaphore!=null) {
-                    for (;;) {
-                        try {
-                            logger.debug("request transform action");
-                            semaphore.acquire();
-                            logger.debug("acquired transform action");
-                            break;
-                        } catch (InterruptedException e) { }
+                String key = null;
+                if (cache != null) {
+                    StringBuilder recordId = new StringBuilder(identity);
+                    for (TransformAction t : chain)
+                        recordId.append(' ').append(t.providerConfig.get(record.getOrigin().getOaiUrl()));
+                    key = TransformCache.key(recordId.toString(), record);
+                    byte[] cached = cache.lookup(key);
+                    if (cached != null) {
+                        if (save != null) {
+                            path = save.prepare(record);
+                            part = SaveAction.partOf(path);
+                            Files.write(part, cached);
+                            SaveAction.commit(record, part, path);
+                        } else {
+                            record.setStream(new ByteArrayInputStream(cached));
+                        }
+                        logger.debug("reused the cached transform result for " + record.getId());
+                        continue;
                     }
                 }
+
+                for (TransformAction t : limited) {
+                    logger.debug("request transform action");
+                    t.semaphore.acquire();
+                    acquired++;
+                    logger.debug("acquired transform action");
+                }
+                XsltTransformer[] transformers = new XsltTransformer[chain.size()];
+                for (int i = 0; i < transformers.length; i++) {
+                    transformers[i] = chain.get(i).getTransformer();
+                    if (transformers[i] == null)
+                        return false;
+                }
                 Source source = null;
-                Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-                DOMDestination output = new DOMDestination(doc);
+                Document doc = null;
+                ByteArrayOutputStream result = null;
+                Destination output;
+                if (save != null) {
+                    path = save.prepare(record);
+                    part = SaveAction.partOf(path);
+                    os = new BufferedOutputStream(Files.newOutputStream(part), SaveAction.BUFFER_SIZE);
+                    Serializer serializer = last.stylesheet.get().getProcessor().newSerializer(os);
+                    serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+                    serializer.setOutputProperty(Serializer.Property.INDENT, save.indent ? "yes" : "no");
+                    output = serializer;
+                } else if (cache != null) {
+                    // keep the result as it will be cached
+                    result = new ByteArrayOutputStream();
+                    Serializer serializer = last.stylesheet.get().getProcessor().newSerializer(result);
+                    serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+                    serializer.setOutputProperty(Serializer.Property.INDENT, "no");
+                    output = serializer;
+                } else {
+                    if (last.builder == null)
+                        last.builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+                    doc = last.builder.newDocument();
+                    output = new DOMDestination(doc);
+                }
                 if (record.hasStream()) {
                     source = new SAXSource(record.getSource());
                 } else {
                     source = new DOMSource(record.getDoc());
                 }
                 XdmNode old = Saxon.buildDocument(source);
-                XsltTransformer transformer = executable.load();
-                
-                TransformActionListener listener = new TransformActionListener();
-                transformer.setErrorListener(listener);
-                transformer.setMessageListener(listener);
-
-                if (cacheDir != null) {
-                    logger.debug("Setting the URLResolve to cache in "+cacheDir);
-                    transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
+                transformers[0].setSource(old.asSource());
+
+                for (int i = 0; i < transformers.length; i++) {
+                    XsltTransformer transformer = transformers[i];
+                    if (i + 1 < transformers.length)
+                        transformer.setDestination(transformers[i + 1]);
+                    else
+                        transformer.setDestination(output);
+
+                    transformer.setParameter(PROVIDER_NAME, new XdmAtomicValue(record.getOrigin().getName()));
+                    transformer.setParameter(PROVIDER_URI, new XdmAtomicValue(record.getOrigin().getOaiUrl()));
+                    transformer.setParameter(RECORD_IDENTIFIER, new XdmAtomicValue(record.getId()));
                 }
-                
-                transformer.setSource(old.asSource());
-                transformer.setDestination(output);
-
-                transformer.setParameter(new QName("config"), Saxon.wrapNode(this.config.getOwnerDocument()));
-                transformer.setParameter(new QName("provider_name"), new XdmAtomicValue(record.getOrigin().getName()));
-                transformer.setParameter(new QName("provider_uri"), new XdmAtomicValue(record.getOrigin().getOaiUrl()));
-                transformer.setParameter(new QName("record_identifier"), new XdmAtomicValue(record.getId()));
-
-                transformer.transform();
-                record.setDoc(doc);
-                logger.debug("transformed to XML doc with ["+XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc())+"] nodes");
-            } catch (XPathExpressionException | SaxonApiException | ParserConfigurationException ex) {
+
+                transformers[0].transform();
+                if (save != null) {
+                    os.close();
+                    os = null;
+                    SaveAction.commit(record, part, path);
+                    if (cache != null)
+                        cache.store(key, path);
+                    logger.debug("transformed and saved XML doc[" + path + "]");
+                } else if (cache != null) {
+                    byte[] bytes = result.toByteArray();
+                    cache.store(key, bytes);
+                    record.setStream(new ByteArrayInputStream(bytes));
+                    logger.debug("transformed to XML stream of " + bytes.length + " bytes");
+                } else {
+                    record.setDoc(doc);
+                    if (logger.isDebugEnabled())
+                        logger.debug("transformed to XML doc with ["+XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc())+"] nodes");
+                }
+            } catch (XPathExpressionException | SaxonApiException | ParserConfigurationException | IOException | TransformerException ex) {
                 logger.error("Transformation error: ",ex);
+                // don't reuse transformers left in an unknown state
+                for (TransformAction t : chain)
+                    t.transformer = null;
+                return false;
+            } catch (InterruptedException ex) {
+                // keep the interrupt visible to the harvesting scenario
+                Thread.currentThread().interrupt();
+                logger.warn("Transformation of record " + record.getId() + " cancelled");
                 return false;
             } finally {
-                if (semaphore!=null) {
-                    semaphore.release();
+                if (os != null) {
+                    try {
+                        os.close();
+                    } catch (IOException e) {
+                    }
+                }
+                if (save != null)
+                    save.cleanup(part, path);
+                for (int i = 0; i < acquired; i++) {
+                    limited.get(i).semaphore.release();
                     logger.debug("released transform action");
                 }
             }
@@ -202,21 +613,20 @@ public class TransformAction implements Action {
 
     @Override
     public Action clone() {
-	      try {
-	          // This is a deep copy. The new object has its own Transform object.
-	          return new TransformAction(config, xsltFile,cacheDir,semaphore);
-	      } catch (FileNotFoundException | TransformerConfigurationException | MalformedURLException | SaxonApiException ex) {
-	          logger.error(ex);
-	      }
-	      return null;
+	      // The compiled stylesheet and the config parameter are shared;
+	      // the clone loads its own transformer.
+	      return new TransformAction(this);
     }
     
     class TransformActionURLResolver implements URIResolver {
         
         private URIResolver resolver;
+
+        private ResolverCache cache;
         
         public TransformActionURLResolver(URIResolver resolver) {
             this.resolver = resolver;
+            this.cache = ResolverCache.get(cacheDir, cacheSize);
         }
         
         public Source resolve(String href, String base) throws TransformerException {
@@ -230,22 +640,7 @@ public class TransformAction implements Action {
                 }
             }
             logger.debug("Transformer resolver: uri["+uri+"]");
-            String cacheFile = uri.replaceAll("[^a-zA-Z0-9]", "_");
-            logger.debug("Transformer resolver: check cache for "+cacheFile);
-            Source res = null;
-            if (Files.exists(cacheDir.resolve(cacheFile))) {
-                res = new StreamSource(cacheDir.resolve(cacheFile).toFile());
-                logger.debug("Transformer resolver: loaded "+cacheFile+" from cache");
-            } else {
-                res = resolver.resolve(href, base);
-                try {
-                    Saxon.save(res, cacheDir.resolve(cacheFile).toFile());
-                    logger.debug("Transformer resolver: stored "+cacheFile+" in cache");
-                } catch (SaxonApiException ex) {
-                    throw new TransformerException(ex);
-                }
-            }
-            return res;
+            return cache.resolve(uri, href, base, resolver);
         }
     }
 
@@ -0,0 +1,365 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Cache of transform results, addressed by content. The key of a result
+ * is a hash of the input record, the identity of the stylesheets applied
+ * and their parameters, so a record that did not change since the last
+ * harvest is not transformed again.
+ * <br><br>
+ *
+ * The cache is kept in a directory, shared by all transform actions
+ * naming it. Entries not used for the maximum age are removed, and when
+ * the cache grows beyond its maximum size the entries used least recently
+ * are removed first, until it is back to 80% of that size. This is done
+ * in the background, so storing a result doesn't wait for it. Entries are
+ * written under a temporary name and moved into place, so a reader never
+ * sees a partial entry.
+ */
+class TransformCache {
+
+    private static final Logger logger = LogManager.getLogger(TransformCache.class);
+
+    /** The caches, by directory */
+    private static final Map<Path, TransformCache> caches = new ConcurrentHashMap<>();
+
+    /** Serializers computing the hash of records held as a tree */
+    private static final ThreadLocal<Transformer> serializer = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("cannot create a serializer", e);
+        }
+    });
+
+    /** Removes entries from the caches in the background */
+    private static final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "transform-cache-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Suffix of entries being written */
+    private static final String PART = ".part";
+
+    private final Path dir;
+
+    /** Maximum size of the entries in bytes */
+    private final long maxSize;
+
+    /** Maximum time in milliseconds an entry is kept without being used */
+    private final long maxAge;
+
+    /** Size of the entries in bytes, as far as known */
+    private final AtomicLong size = new AtomicLong();
+
+    /** Whether removing entries is scheduled or running */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /** Whether removing entries was asked for since it last started */
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /** Whether the entries found in the directory were checked */
+    private final AtomicBoolean checked = new AtomicBoolean();
+
+    /** The last removal of entries scheduled */
+    private volatile Future<?> eviction;
+
+    private TransformCache(Path dir, long maxSize, long maxAge) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get the cache kept in a directory. The first request for a directory
+     * determines the limits of its cache.
+     *
+     * @param dir the cache directory
+     * @param maxSize maximum size of the entries in bytes
+     * @param maxAge maximum time in milliseconds an entry is kept without
+     * being used
+     * @return the cache
+     */
+    static TransformCache get(Path dir, long maxSize, long maxAge) {
+        TransformCache cache = caches.computeIfAbsent(dir.toAbsolutePath(),
+                d -> new TransformCache(d, maxSize, maxAge));
+        // old entries left from earlier harvests, and the size of the cache
+        if (cache.checked.compareAndSet(false, true))
+            cache.scheduleEviction();
+        return cache;
+    }
+
+    /**
+     * Compute the key of the result of a transform.
+     *
+     * @param identity the identity of the stylesheets and the way the
+     * result is serialized
+     * @param record the input record
+     * @return the key
+     * @throws IOException the record could not be read
+     * @throws TransformerException the record could not be serialized
+     */
+    static String key(String identity, Metadata record) throws IOException, TransformerException {
+        MessageDigest digest = digest();
+        update(digest, identity);
+        update(digest, record.getOrigin().getName());
+        update(digest, record.getOrigin().getOaiUrl());
+        update(digest, record.getId());
+
+        DigestOutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest);
+        if (record.hasStream()) {
+            InputStream in = record.getStream();
+            in.transferTo(out);
+        } else {
+            serializer.get().transform(new DOMSource(record.getDoc()), new StreamResult(out));
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Compute the hash of a stylesheet or other resource identifying a
+     * transform.
+     *
+     * @param parts the bytes of the resources
+     * @return the hash
+     */
+    static String hash(byte[]... parts) {
+        MessageDigest digest = digest();
+        for (byte[] part : parts) {
+            digest.update(part);
+            digest.update((byte) 0);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Look up a result, marking it as used.
+     *
+     * @param key the key of the result
+     * @return the serialized result, or null if it is not cached
+     */
+    byte[] lookup(String key) {
+        Path entry = entry(key);
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return Files.readAllBytes(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.debug("Cannot use cached transform result " + entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a result.
+     *
+     * @param key the key of the result
+     * @param result the serialized result
+     */
+    void store(String key, byte[] result) {
+        Path entry = entry(key);
+        try {
+            Files.createDirectories(entry.getParent());
+            Path part = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), PART);
+            try {
+                Files.write(part, result);
+                Files.move(part, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(part);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot cache transform result " + entry, e);
+            return;
+        }
+        if (size.addAndGet(result.length) > maxSize)
+            scheduleEviction();
+    }
+
+    /**
+     * Store a result already written to a file.
+     *
+     * @param key the key of the result
+     * @param result the file holding the result
+     */
+    void store(String key, Path result) {
+        try {
+            store(key, Files.readAllBytes(result));
+        } catch (IOException e) {
+            logger.warn("Cannot cache transform result " + result, e);
+        }
+    }
+
+    private Path entry(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Have entries removed in the background. A request made while entries
+     * are being removed makes that run again afterwards.
+     */
+    private void scheduleEviction() {
+        pending.set(true);
+        if (evicting.compareAndSet(false, true))
+            eviction = evictor.submit(this::evictPending);
+    }
+
+    private void evictPending() {
+        try {
+            while (pending.getAndSet(false))
+                evict();
+        } finally {
+            evicting.set(false);
+        }
+        // asked for after the last run, before it was done
+        if (pending.get())
+            scheduleEviction();
+    }
+
+    /**
+     * Wait until the entries to be removed so far are removed.
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    void awaitEviction() throws InterruptedException {
+        Future<?> f;
+        while ((f = eviction) != null && !f.isDone()) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                logger.warn("Cannot clean up transform cache " + dir, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Remove the entries older than the maximum age, and, when the cache
+     * is larger than its maximum size, the ones used least recently until
+     * it is at 80% of that size. The directory is listed once, and each
+     * entry looked at once.
+     */
+    private void evict() {
+        try {
+            List<Entry> entries = new ArrayList<>();
+            try (Stream<Path> files = Files.walk(dir, 2)) {
+                files.filter(p -> !p.getFileName().toString().endsWith(PART)).forEach(p -> {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                        if (attrs.isRegularFile())
+                            entries.add(new Entry(p, attrs.lastModifiedTime().toMillis(), attrs.size()));
+                    } catch (IOException e) {
+                        // removed meanwhile
+                    }
+                });
+            }
+            entries.sort(Comparator.comparingLong(e -> e.used));
+
+            long oldest = System.currentTimeMillis() - maxAge;
+            long total = 0;
+            for (Entry entry : entries)
+                total += entry.size;
+            // leave room, so the next results don't start this again at once
+            long target = (total > maxSize) ? maxSize - maxSize / 5 : Long.MAX_VALUE;
+            int removed = 0;
+            for (Entry entry : entries) {
+                if (entry.used >= oldest && total <= target)
+                    break;
+                if (Files.deleteIfExists(entry.path)) {
+                    total -= entry.size;
+                    removed++;
+                }
+            }
+            size.set(total);
+            if (removed > 0)
+                logger.info("Removed " + removed + " transform result(s) from " + dir);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot clean up transform cache " + dir, e);
+        }
+    }
+
+    /**
+     * An entry, with the time it was last used and its size.
+     */
+    private static final class Entry {
+        final Path path;
+        final long used;
+        final long size;
+
+        Entry(Path path, long used, long size) {
+            this.path = path;
+            this.used = used;
+            this.size = size;
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
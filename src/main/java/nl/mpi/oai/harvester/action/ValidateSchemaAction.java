@@ -0,0 +1,290 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.control.Util;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.utils.UnclosableInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Element;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * This class represents the validation of records against the XML schema
+ * they name in xsi:schemaLocation or xsi:noNamespaceSchemaLocation on
+ * their root element. Valid records, and records naming no schema or a
+ * schema that can't be compiled, pass on to the next action; invalid ones
+ * are saved to an error directory and go no further.
+ * <br><br>
+ *
+ * Records held as a stream are validated while they are parsed, without
+ * building a tree.
+ */
+public class ValidateSchemaAction implements Action {
+
+    private static final Logger logger = LogManager.getLogger(ValidateSchemaAction.class);
+
+    /** The directory invalid records are saved to */
+    private final OutputDirectory dir;
+
+    private final String suffix;
+
+    private final boolean groupByProvider;
+
+    /** Directory keeping schema documents, or null */
+    private final Path cacheDir;
+
+    /** The compiled schemas, shared by all actions using the cache directory */
+    private final SchemaCache schemas;
+
+    /* Factories and serializers are expensive to create, and are kept for
+       reuse by the thread that created them. */
+    private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(XMLInputFactory::newInstance);
+
+    private static final ThreadLocal<Transformer> serializer = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("cannot create a serializer", e);
+        }
+    });
+
+    /**
+     * Create a new schema validation action.
+     *
+     * @param dir directory to save invalid records to
+     * @param suffix suffix to be added to identifier to generate filename
+     * @param groupByProvider whether to save invalid records in a
+     * directory per provider
+     * @param cacheDir directory to keep schema documents in, or null
+     */
+    public ValidateSchemaAction(OutputDirectory dir, String suffix, boolean groupByProvider, Path cacheDir) {
+        this.dir = dir;
+        this.suffix = (suffix == null) ? ".xml" : suffix;
+        this.groupByProvider = groupByProvider;
+        this.cacheDir = cacheDir;
+        this.schemas = SchemaCache.get(cacheDir);
+    }
+
+    @Override
+    public boolean perform(List<Metadata> records) {
+        Iterator<Metadata> i = records.iterator();
+        while (i.hasNext()) {
+            Metadata record = i.next();
+            try {
+                String location;
+                try {
+                    location = schemaLocation(record);
+                } catch (XMLStreamException ex) {
+                    // a record that can't be read is invalid whatever its schema
+                    logger.warn("Record " + record.getId() + " is not well-formed: " + ex.getMessage());
+                    Path path = save(record);
+                    logger.info("Saved invalid record " + record.getId() + " to " + path);
+                    i.remove();
+                    continue;
+                }
+                if (location == null) {
+                    logger.debug("Record " + record.getId() + " names no schema");
+                    continue;
+                }
+                Schema schema = schemas.get(location);
+                if (schema == null)
+                    continue;
+
+                List<String> errors = validate(schema, record);
+                if (errors.isEmpty()) {
+                    logger.debug("Record " + record.getId() + " is valid");
+                    continue;
+                }
+
+                logger.warn("Record " + record.getId() + " is not valid against " + location
+                        + ": " + errors.get(0)
+                        + (errors.size() > 1 ? " (and " + (errors.size() - 1) + " more)" : ""));
+                for (String error : errors)
+                    logger.debug(record.getId() + ": " + error);
+                Path path = save(record);
+                logger.info("Saved invalid record " + record.getId() + " to " + path);
+                i.remove();
+            } catch (IOException | TransformerException | SAXException ex) {
+                logger.error("Cannot validate record " + record.getId(), ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the schema location given on the root element of a record. A
+     * stream is only read up to its root element.
+     *
+     * @return the location, or null if there is none
+     */
+    private static String schemaLocation(Metadata record) throws XMLStreamException {
+        if (record.hasDoc()) {
+            Element root = record.getDoc().getDocumentElement();
+            if (root == null)
+                return null;
+            String location = root.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+            if (location.isEmpty())
+                location = root.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "noNamespaceSchemaLocation");
+            // trees parsed without namespace support only know the prefix
+            if (location.isEmpty())
+                location = root.getAttribute("xsi:schemaLocation");
+            if (location.isEmpty())
+                location = root.getAttribute("xsi:noNamespaceSchemaLocation");
+            return location.isEmpty() ? null : location;
+        }
+
+        XMLStreamReader reader = inputFactory.get().createXMLStreamReader(record.getStream());
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String location = reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+                    if (location == null)
+                        location = reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "noNamespaceSchemaLocation");
+                    return location;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Validate a record.
+     *
+     * @return the errors found, empty if the record is valid
+     */
+    private static List<String> validate(Schema schema, Metadata record) throws IOException, SAXException {
+        List<String> errors = new ArrayList<>();
+        Validator validator = schema.newValidator();
+        validator.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                errors.add(format(e));
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) {
+                errors.add(format(e));
+            }
+        });
+        try {
+            if (record.hasDoc())
+                validator.validate(new DOMSource(record.getDoc()));
+            else
+                validator.validate(new StreamSource(new UnclosableInputStream(record.getStream())));
+        } catch (SAXParseException e) {
+            // not well-formed; already reported to the handler
+        }
+        return errors;
+    }
+
+    private static String format(SAXParseException e) {
+        return "line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+    }
+
+    /**
+     * Save an invalid record to the error directory.
+     *
+     * @return the file the record was saved to
+     */
+    private Path save(Metadata record) throws IOException, TransformerException {
+        OutputDirectory target = groupByProvider
+                ? dir.makeSubdirectory(Util.toFileFormat(record.getOrigin().getName()))
+                : dir;
+        Path path = target.placeNewFile(Util.toFileFormat(record.getId(), suffix));
+        Path part = path.resolveSibling(path.getFileName() + ".part");
+        try {
+            if (record.hasDoc()) {
+                try (OutputStream os = Files.newOutputStream(part)) {
+                    serializer.get().transform(new DOMSource(record.getDoc()), new StreamResult(os));
+                }
+            } else {
+                InputStream in = record.getStream();
+                Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return "validate against schema, invalid records to " + dir
+                + (groupByProvider ? " grouped by provider" : "");
+    }
+
+    // Validation actions are equal iff they save to the same place and
+    // use the same schema cache.
+    @Override
+    public int hashCode() {
+        return Objects.hash(dir, suffix, groupByProvider, cacheDir);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ValidateSchemaAction) {
+            ValidateSchemaAction a = (ValidateSchemaAction) o;
+            return dir.equals(a.dir) && suffix.equals(a.suffix)
+                    && groupByProvider == a.groupByProvider
+                    && Objects.equals(cacheDir, a.cacheDir);
+        }
+        return false;
+    }
+
+    @Override
+    public Action clone() {
+        // the output directory and the schema cache are shared
+        return new ValidateSchemaAction(dir, suffix, groupByProvider, cacheDir);
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.Fingerprint;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes saved records to their files on threads of its own, so the
+ * harvesting thread can go on with the next record. Records wait in a
+ * bounded queue; when it is full, saving blocks until there is room.
+ * <br><br>
+ *
+ * A writer takes the records waiting, up to a batch, writes them all and
+ * then moves them into place. When syncing, the files of a batch are
+ * forced to disk together before they are moved into place, and each
+ * directory of the batch is synced once afterwards.
+ * <br><br>
+ *
+ * A record that can't be written is saved next to its file with the
+ * extension .error, like a record a save action fails on, and counts as
+ * a failure of its provider's harvest.
+ * <br><br>
+ *
+ * The writer threads run until the write-behind is shut down, when the
+ * configuration it belongs to is no longer used.
+ */
+class WriteBehind {
+
+    private static final Logger logger = LogManager.getLogger(WriteBehind.class);
+
+    /** Maximum number of records a writer handles at once */
+    private static final int BATCH = 64;
+
+    /** Queued after the last record when shutting down */
+    private static final Job STOP = new Job(null, null, null, null, null);
+
+    /** Number of write-behinds started so far */
+    private static final AtomicInteger started = new AtomicInteger();
+
+    /** Records waiting to be written and failures, by provider */
+    private static final Map<Provider, Pending> pending = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Job> queue;
+
+    private final int threads;
+
+    private final boolean sync;
+
+    /** Tells this write-behind apart from the ones of other configurations */
+    private final int number = started.incrementAndGet();
+
+    private final List<Thread> writers = new ArrayList<>();
+
+    /** Records are queued holding the read lock; stopping takes the write
+        lock, so no record is queued after STOP */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean stopped = false;
+
+    /**
+     * Start writing records behind.
+     *
+     * @param threads number of writer threads
+     * @param capacity number of records that may wait to be written
+     * @param sync whether to force the records to disk
+     */
+    WriteBehind(int threads, int capacity, boolean sync) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.threads = threads;
+        this.sync = sync;
+        for (int i = 0; i < threads; i++) {
+            Thread writer = new Thread(this::run, "save-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Queue a record to be written.
+     *
+     * @param provider the provider of the record
+     * @param id the identifier of the record
+     * @param path the file to write the record to
+     * @param bytes the record
+     * @param fingerprint the fingerprint to store with the file, or null
+     * @throws InterruptedException interrupted while waiting for room in
+     * the queue
+     * @throws IllegalStateException the write-behind is shut down
+     */
+    void submit(Provider provider, String id, Path path, byte[] bytes, String fingerprint) throws InterruptedException {
+        lock.readLock().lockInterruptibly();
+        try {
+            if (stopped)
+                throw new IllegalStateException("Cannot save record " + id + ", writer threads are shut down");
+            Pending p = pending.computeIfAbsent(provider, k -> new Pending());
+            p.add();
+            try {
+                queue.put(new Job(p, id, path, bytes, fingerprint));
+            } catch (InterruptedException e) {
+                p.done(false);
+                throw e;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until the records of a provider queued so far are written.
+     * Waiting is not interrupted: a cancelled harvest still finishes the
+     * records it handed over.
+     *
+     * @param provider the provider
+     * @return the number of records that could not be written
+     */
+    static int await(Provider provider) {
+        Pending p = pending.get(provider);
+        if (p == null)
+            return 0;
+        int failures = p.await();
+        pending.remove(provider, p);
+        return failures;
+    }
+
+    /**
+     * Stop the writer threads once the records queued are written, and
+     * wait for them to finish. No records can be queued afterwards.
+     */
+    void shutdown() {
+        // records being queued still get in, as the writers make room
+        lock.writeLock().lock();
+        try {
+            if (stopped)
+                return;
+            stopped = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        boolean interrupted = passOn();
+        for (Thread writer : writers) {
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        logger.debug("Stopped " + this);
+    }
+
+    /**
+     * Queue STOP, waiting for room without being interrupted.
+     *
+     * @return whether the thread was interrupted while waiting
+     */
+    private boolean passOn() {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                queue.put(STOP);
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    private void run() {
+        List<Job> batch = new ArrayList<>(BATCH);
+        for (;;) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+            // the last record is queued before STOP, which is passed on so
+            // every writer sees it
+            boolean stop = batch.remove(STOP);
+            if (stop)
+                passOn();
+            try {
+                write(batch);
+            } catch (RuntimeException e) {
+                // don't leave the harvest waiting for these records
+                logger.error("Cannot save records", e);
+                for (Job job : batch) {
+                    if (!job.reported)
+                        job.pending.done(false);
+                }
+            }
+            batch.clear();
+            if (stop)
+                return;
+        }
+    }
+
+    /**
+     * Write a batch of records.
+     */
+    private void write(List<Job> batch) {
+        for (Job job : batch) {
+            job.part = SaveAction.partOf(job.path);
+            try {
+                job.channel = FileChannel.open(job.part, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                ByteBuffer buffer = ByteBuffer.wrap(job.bytes);
+                while (buffer.hasRemaining())
+                    job.channel.write(buffer);
+                if (!sync)
+                    close(job);
+            } catch (IOException e) {
+                fail(job, e);
+            }
+        }
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        if (sync) {
+            for (Job job : batch) {
+                if (job.failed)
+                    continue;
+                try {
+                    job.channel.force(true);
+                    close(job);
+                    dirs.add(job.path.getParent());
+                } catch (IOException e) {
+                    fail(job, e);
+                }
+            }
+        }
+
+        for (Job job : batch) {
+            if (job.failed)
+                continue;
+            try {
+                SaveAction.commit(job.part, job.path);
+                if (job.fingerprint != null)
+                    Fingerprint.store(job.path, job.fingerprint);
+                logger.debug("saved XML record[" + job.path + "]");
+            } catch (IOException e) {
+                fail(job, e);
+            }
+        }
+
+        // the renames are made durable once per directory
+        for (Path dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                logger.debug("Cannot sync directory " + dir, e);
+            }
+        }
+
+        for (Job job : batch) {
+            job.reported = true;
+            job.pending.done(!job.failed);
+        }
+    }
+
+    private static void close(Job job) throws IOException {
+        FileChannel channel = job.channel;
+        job.channel = null;
+        if (channel != null)
+            channel.close();
+    }
+
+    /**
+     * Report a record that could not be written, and save it to an error
+     * file instead.
+     */
+    private static void fail(Job job, IOException e) {
+        job.failed = true;
+        logger.error("Cannot save record " + job.id + " to " + job.path, e);
+        try {
+            close(job);
+            Files.deleteIfExists(job.part);
+        } catch (IOException ex) {
+            logger.debug("Cannot remove " + job.part, ex);
+        }
+        Path errpath = job.path.resolveSibling(job.path.getFileName() + ".error");
+        try {
+            Files.write(errpath, job.bytes);
+            logger.debug("saved XML stream with errors[" + errpath + "]");
+        } catch (IOException ex) {
+            logger.error("Cannot save record " + job.id + " to " + errpath, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return threads + " writer(s)" + (sync ? " syncing" : "") + " #" + number;
+    }
+
+    /**
+     * A record waiting to be written.
+     */
+    private static final class Job {
+        final Pending pending;
+        final String id;
+        final Path path;
+        final byte[] bytes;
+        final String fingerprint;
+        Path part;
+        FileChannel channel;
+        boolean failed;
+        boolean reported;
+
+        Job(Pending pending, String id, Path path, byte[] bytes, String fingerprint) {
+            this.pending = pending;
+            this.id = id;
+            this.path = path;
+            this.bytes = bytes;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * The records of a provider waiting to be written.
+     */
+    private static final class Pending {
+        private int count;
+        private int failures;
+
+        synchronized void add() {
+            count++;
+        }
+
+        synchronized void done(boolean written) {
+            count--;
+            if (!written)
+                failures++;
+            if (count == 0)
+                notifyAll();
+        }
+
+        synchronized int await() {
+            boolean interrupted = false;
+            while (count > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            int result = failures;
+            failures = 0;
+            return result;
+        }
+    }
+}
@@ -90,12 +90,22 @@ public class Configuration {
      */
     private List<ActionSequence> actionSequences;
 
+    /**
+     * Save actions writing records on threads of their own.
+     */
+    private final List<SaveAction> writeBehinds = new ArrayList<>();
+
     /**
      * All OAI-PMH providers (whether defined in configuration or read from
      * centre registry).
      */
     private List<Provider> providers;
 
+    /**
+     * Name or URL of the only provider to harvest (optional).
+     */
+    private String providerSelection = null;
+
     /**
      * List of names of known configuration options.
      */
@@ -106,7 +116,13 @@ public class Configuration {
         OVERVIEWFILE("overview-file"), MAPFILE("map-file"),
         SAVERESPONSE("save-response"), SCENARIO("scenario"),
         INCREMENTAL("incremental"), DRYRUN("dry-run"),
-        COMPARE_MODE("compare-mode");   // <-- ADD THIS
+        COMPARE_MODE("compare-mode"), RUNDEADLINE("run-deadline"),
+        PROVIDERDEADLINE("provider-deadline"),
+        SHUTDOWNGRACE("shutdown-grace"), PREFLIGHTJOBS("preflight-jobs"),
+        DAEMON("daemon"), HARVESTINTERVAL("harvest-interval"),
+        DAEMONPOLL("daemon-poll"), RECORDJOBS("record-jobs"),
+        MEMORYBUDGET("memory-budget"), STALLTIMEOUT("stall-timeout"),
+        STALLACTION("stall-action");
         
         private final String val;
 
@@ -230,7 +246,10 @@ public class Configuration {
             String id = Util.getNodeText(xpath, "./@id", curr);
             String maxString = Util.getNodeText(xpath, "./@max-files", curr);
             int max = (maxString == null) ? 0 : Integer.valueOf(maxString);
-            OutputDirectory od = new OutputDirectory(workDir.resolve(path), max);
+            boolean hashed = "hashed".equals(Util.getNodeText(xpath, "./@layout", curr));
+            if (hashed && max > 0)
+                logger.warn("Output directory " + id + " uses the hashed layout, max-files is ignored");
+            OutputDirectory od = new OutputDirectory(workDir.resolve(path), max, hashed);
 
             if (outputs.containsKey(id)) {
                 logger.error("Configuration file defines several files with id "
@@ -290,11 +309,73 @@ public class Configuration {
                                     "./@group-by-provider", s);
                             // If the group-by-provider attribute is
                             // not defined, it defaults to true.
+                            SaveAction save;
                             if (group != null && !Boolean.valueOf(group)) {
-                                act = new SaveAction(outDir, suffix, offload, history, find, replace);
+                                save = new SaveAction(outDir, suffix, offload, history, find, replace);
                             } else {
-                                act = new SaveGroupedAction(outDir, suffix, offload, history, find, replace);
+                                save = new SaveGroupedAction(outDir, suffix, offload, history, find, replace);
+                            }
+                            // indented unless indent="false"
+                            String indent = Util.getNodeText(xpath, "./@indent", s);
+                            if (indent != null)
+                                save.setIndent(Boolean.parseBoolean(indent));
+                            // streams are copied as is unless reserialize="true"
+                            save.setReserialize(Boolean.parseBoolean(
+                                    Util.getNodeText(xpath, "./@reserialize", s)));
+                            // records go to a record store if store="true"
+                            if (Boolean.parseBoolean(Util.getNodeText(xpath, "./@store", s))) {
+                                long segmentSize = RecordStore.DEFAULT_SEGMENT_SIZE;
+                                String sizeStr = Util.getNodeText(xpath, "./@segment-size", s);
+                                if (sizeStr != null) {
+                                    try {
+                                        segmentSize = Long.parseLong(sizeStr) * 1024 * 1024;
+                                    } catch (NumberFormatException e) {
+                                        logger.error("@segment-size[" + sizeStr + "] doesn't contain a valid number", e);
+                                    }
+                                }
+                                try {
+                                    outDir.getBase();
+                                    save.setStore(segmentSize);
+                                } catch (RuntimeException e) {
+                                    logger.error("Output directory " + outDirId
+                                            + " has a file limit, records are saved as files instead of a store");
+                                }
+                            }
+                            // records are written by threads of their own if write-behind is set
+                            String writers = Util.getNodeText(xpath, "./@write-behind", s);
+                            if (writers != null) {
+                                try {
+                                    int threads = Integer.parseInt(writers);
+                                    int capacity = 1024;
+                                    String queueStr = Util.getNodeText(xpath, "./@write-queue", s);
+                                    if (queueStr != null)
+                                        capacity = Integer.parseInt(queueStr);
+                                    if (threads > 0) {
+                                        save.setWriteBehind(threads, capacity, Boolean.parseBoolean(
+                                                Util.getNodeText(xpath, "./@sync", s)));
+                                        writeBehinds.add(save);
+                                    }
+                                } catch (NumberFormatException e) {
+                                    logger.error("@write-behind[" + writers + "] or @write-queue doesn't contain a valid number", e);
+                                }
                             }
+                            // each provider's records are also packed in an archive
+                            String archive = Util.getNodeText(xpath, "./@archive", s);
+                            if (archive != null) {
+                                RecordArchive.Format archiveFormat = RecordArchive.Format.parse(archive);
+                                if (archiveFormat == null) {
+                                    logger.error("@archive[" + archive + "] is not zip or tar.gz");
+                                } else {
+                                    try {
+                                        outDir.getBase();
+                                        save.setArchive(archiveFormat);
+                                    } catch (RuntimeException e) {
+                                        logger.error("Output directory " + outDirId
+                                                + " has a file limit, records are not archived");
+                                    }
+                                }
+                            }
+                            act = save;
                         } else {
                             logger.error("Invalid output directory " + outDirId
                                     + " specified for save action");
@@ -318,10 +399,61 @@ public class Configuration {
                                     logger.error("@max-jobs[" + jobsStr + "] doesn't contain a valid number", e);
                                 }
                             }
-                            act = new TransformAction(base, xslFile, cache, jobs);
+                            TransformAction transform = new TransformAction(base, xslFile, cache, jobs);
+                            String cacheSize = Util.getNodeText(xpath, "./@cache-size", s);
+                            if (cacheSize != null) {
+                                try {
+                                    transform.setCacheSize(Integer.parseInt(cacheSize));
+                                } catch (NumberFormatException e) {
+                                    logger.error("@cache-size[" + cacheSize + "] doesn't contain a valid number", e);
+                                }
+                            }
+                            String resultCache = Util.getNodeText(xpath, "./@result-cache", s);
+                            if (resultCache != null) {
+                                Path resultDir = Paths.get(getWorkingDirectory()).resolve(resultCache);
+                                Util.ensureDirExists(resultDir);
+                                int size = 1024;
+                                int age = 30;
+                                String sizeStr = Util.getNodeText(xpath, "./@result-cache-size", s);
+                                String ageStr = Util.getNodeText(xpath, "./@result-cache-age", s);
+                                try {
+                                    if (sizeStr != null)
+                                        size = Integer.parseInt(sizeStr);
+                                    if (ageStr != null)
+                                        age = Integer.parseInt(ageStr);
+                                } catch (NumberFormatException e) {
+                                    logger.error("@result-cache-size[" + sizeStr + "] or @result-cache-age["
+                                            + ageStr + "] doesn't contain a valid number", e);
+                                }
+                                transform.setResultCache(s, resultDir, size, age);
+                            }
+                            act = transform;
                         } catch (Exception ex) {
                             logger.error(ex);
                         }
+                    } else if ("validate-schema".equals(actionType)) {
+                        String outDirId = Util.getNodeText(xpath, "./@dir", s);
+                        String suffix = Util.getNodeText(xpath, "./@suffix", s);
+                        String group = Util.getNodeText(xpath, "./@group-by-provider", s);
+                        // If the group-by-provider attribute is
+                        // not defined, it defaults to true.
+                        boolean groupByProvider = group == null || Boolean.parseBoolean(group);
+                        if (outputs.containsKey(outDirId)) {
+                            try {
+                                Path cache = null;
+                                String cacheDir = Util.getNodeText(xpath, "./@cache", s);
+                                if (cacheDir != null) {
+                                    cache = Paths.get(getWorkingDirectory()).resolve(cacheDir);
+                                    Util.ensureDirExists(cache);
+                                }
+                                act = new ValidateSchemaAction(outputs.get(outDirId), suffix, groupByProvider, cache);
+                            } catch (IOException ex) {
+                                logger.error(ex);
+                            }
+                        } else {
+                            logger.error("Invalid output directory " + outDirId
+                                    + " specified for validate-schema action");
+                        }
                     } else if ("validate-or-recover".equals(actionType)) {
                         String outDirId = Util.getNodeText(xpath, "./@dir", s);
                         boolean history = Boolean.parseBoolean(Util.getNodeText(xpath, "./@history", s));
@@ -459,6 +591,8 @@ public class Configuration {
                         // do not include an endpoint if it is specified to be excluded
                         if (excludeSpec.contains(provUrl)) {
                             logger.debug("Excluding endpoint" + provUrl);
+                        } else if (!isSelected(null, provUrl)) {
+                            logger.debug("Not selected endpoint" + provUrl);
                         } else {
                             logger.debug("Including endpoint" + provUrl);
                             Provider provider = new Provider(provUrl, getMaxRetryCount(), getRetryDelays());
@@ -471,6 +605,7 @@ public class Configuration {
                                 String pRetryDelays = Util.getNodeText(xpath, "./@retry-delay", configNode);
                                 String pExclusive = Util.getNodeText(xpath, "./@exclusive", configNode);
                                 String pOmitUntil = Util.getNodeText(xpath, "./@omit-until", configNode);
+                                String pDeadline = Util.getNodeText(xpath, "./@deadline", configNode);
 
                                 int timeout = (pTimeout != null) ? Integer.valueOf(pTimeout) : getTimeout();
                                 int recordTimeout = (pRecordTimeout != null) ? Integer.valueOf(pRecordTimeout) : timeout;                                int maxRetryCount = (pMaxRetryCount != null) ? Integer.valueOf(pMaxRetryCount) : getMaxRetryCount();
@@ -478,6 +613,7 @@ public class Configuration {
                                 boolean exclusive = Boolean.parseBoolean(pExclusive);
                                 boolean omitUntil = Boolean.parseBoolean(pOmitUntil);
                                 String scenario = (pScenario != null) ? pScenario : getScenario();
+                                int deadline = (pDeadline != null) ? Integer.valueOf(pDeadline) : getProviderDeadline();
 
                                 provider.setTimeout(timeout);
                                 provider.setRecordTimeout(recordTimeout);
@@ -488,6 +624,7 @@ public class Configuration {
                                 provider.setCompareMode(getCompareMode());
                                 provider.setScenario(scenario);
                                 provider.setOmitUntil(omitUntil);
+                                provider.setDeadline(deadline);
                             } else {
                                 provider.setTimeout(getTimeout());
                                 provider.setRecordTimeout(getTimeout());
@@ -497,6 +634,7 @@ public class Configuration {
                                 provider.setIncremental(isIncremental());
                                 provider.setCompareMode(getCompareMode());
                                 provider.setScenario(getScenario());
+                                provider.setDeadline(getProviderDeadline());
                             }
                             
                             //configure sets
@@ -552,6 +690,12 @@ public class Configuration {
             String pOmitUntil = Util.getNodeText(xpath, "./@omituntil", cur);
             String pPrefix = Util.getNodeText(xpath, "./@prefix", cur);
             String pFilter = Util.getNodeText(xpath, "./@filter", cur);
+            String pDeadline = Util.getNodeText(xpath, "./@deadline", cur);
+
+            if (!isSelected(pName, pUrl)) {
+                logger.debug("Not selected provider " + pName);
+                continue;
+            }
 
             int timeout = (pTimeout != null) ? Integer.valueOf(pTimeout) : getTimeout();
             int recordTimeout = (pRecordTimeout != null) ? Integer.valueOf(pRecordTimeout) : timeout;
@@ -560,6 +704,7 @@ public class Configuration {
             boolean exclusive = Boolean.parseBoolean(pExclusive);
             boolean omitUntil = Boolean.parseBoolean(pOmitUntil);
             String scenario = (pScenario != null) ?  pScenario : getScenario();
+            int deadline = (pDeadline != null) ? Integer.valueOf(pDeadline) : getProviderDeadline();
 
             if (pUrl == null) {
                 logger.error("Skipping provider " + pName + ": URL is missing");
@@ -581,6 +726,7 @@ public class Configuration {
             provider.setOmitUntil(omitUntil);
             provider.setPrefixOverride(pPrefix);
             provider.setIdentifierFilter(pFilter);
+            provider.setDeadline(deadline);
             
             if (!Boolean.valueOf(pStatic)) {
                 // Note: static providers do not support sets, so this only
@@ -604,6 +750,36 @@ public class Configuration {
         return providers;
     }
 
+    /**
+     * Restrict the providers to the one with the given name or URL. Must be
+     * called before the configuration is read; providers that cannot be the
+     * selected one are then not created at all.
+     *
+     * @param selection provider name or endpoint URL, or null for all
+     */
+    public void selectProvider(String selection) {
+        this.providerSelection = selection;
+    }
+
+    /**
+     * Check if a provider might be the selected one. A provider without a
+     * configured name is kept, unless the selection is a URL, since its name
+     * is only known after contacting it.
+     *
+     * @param name the configured name of the provider, or null
+     * @param url the endpoint of the provider
+     * @return false if the provider can be skipped
+     */
+    private boolean isSelected(String name, String url) {
+        if (providerSelection == null)
+            return true;
+        if (providerSelection.equals(name))
+            return true;
+        if (url != null && providerSelection.equals(url.replaceAll("\\?.*$", "")))
+            return true;
+        return (name == null && !providerSelection.contains("://"));
+    }
+
     public List<ActionSequence> getActionSequences() {
         return actionSequences;
     }
@@ -672,6 +848,59 @@ public class Configuration {
         return Integer.valueOf(s);
     }
 
+    public int getPreflightJobs() {
+        String s = settings.get(KnownOptions.PREFLIGHTJOBS.toString());
+        // Note that the default value is not fixed; instead, it is equal
+        // to the maximum number of jobs.
+        if (s == null) return getMaxJobs();
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the number of records of a single ListRecords response that may
+     * be processed at the same time, per provider. The default of 1
+     * processes them one after another on the worker thread.
+     */
+    public int getRecordJobs() {
+        String s = settings.get(KnownOptions.RECORDJOBS.toString());
+        return (s == null) ? 1 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get the number of megabytes the responses processed at the same time
+     * may take, estimated. The default of 0 means no limit.
+     */
+    public long getMemoryBudget() {
+        String s = settings.get(KnownOptions.MEMORYBUDGET.toString());
+        return (s == null) ? 0 : Long.valueOf(s);
+    }
+
+    /**
+     * Get the number of seconds a worker may spend in the same phase
+     * before it is considered stalled. The default of 0 disables the
+     * watchdog.
+     */
+    public int getStallTimeout() {
+        String s = settings.get(KnownOptions.STALLTIMEOUT.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get what to do about a stalled worker: log (the default), interrupt
+     * or abandon.
+     */
+    public Watchdog.StallAction getStallAction() {
+        String s = settings.get(KnownOptions.STALLACTION.toString());
+        if (s == null)
+            return Watchdog.StallAction.LOG;
+        try {
+            return Watchdog.StallAction.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown stall action " + s + ", stalls are only logged");
+            return Watchdog.StallAction.LOG;
+        }
+    }
+
     /**
      * @return string indicating the location of the overview file
      */
@@ -783,6 +1012,61 @@ public class Configuration {
         return(CompareSkipVals.IGNORE);
     }
     
+    /**
+     * Get the wall-clock budget, in seconds, for the whole harvesting run.
+     * When it expires running workers are cancelled. A value of 0 means
+     * the run is not limited.
+     */
+    public int getRunDeadline() {
+        String s = settings.get(KnownOptions.RUNDEADLINE.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get the default wall-clock budget, in seconds, for harvesting a single
+     * provider. A value of 0 means a provider is not limited.
+     */
+    public int getProviderDeadline() {
+        String s = settings.get(KnownOptions.PROVIDERDEADLINE.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get the time, in seconds, cancelled workers get to wind down and
+     * record their state before the harvester exits anyway.
+     */
+    public int getShutdownGrace() {
+        String s = settings.get(KnownOptions.SHUTDOWNGRACE.toString());
+        return (s == null) ? 60 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get daemon flag. In daemon mode the harvester keeps running, and
+     * harvests each provider again once its interval has passed.
+     */
+    public boolean isDaemon() {
+        String s = settings.get(KnownOptions.DAEMON.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+
+    /**
+     * Get the default number of seconds between two harvests of a provider
+     * in daemon mode. The overview can define an interval per endpoint.
+     */
+    public int getHarvestInterval() {
+        String s = settings.get(KnownOptions.HARVESTINTERVAL.toString());
+        return (s == null) ? 86400 : Integer.valueOf(s);
+    }
+
+    /**
+     * Get the number of seconds between two checks, in daemon mode, for
+     * providers due for harvesting and for changes to the configuration.
+     */
+    public int getDaemonPoll() {
+        String s = settings.get(KnownOptions.DAEMONPOLL.toString());
+        return (s == null) ? 60 : Integer.valueOf(s);
+    }
+
     /**
      * Get dry run flag.
      */
@@ -814,6 +1098,16 @@ public class Configuration {
     }
     
 
+    /**
+     * Stop the threads the actions of the configuration run on their own,
+     * once their work is done. Called when no harvest uses the
+     * configuration any more.
+     */
+    public void shutdown() {
+        for (SaveAction save : writeBehinds)
+            save.stopWriteBehind();
+    }
+
     /**
      * Log parsed contents of the configuration.
      */
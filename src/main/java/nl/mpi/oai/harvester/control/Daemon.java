@@ -0,0 +1,240 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.cycle.Cycle;
+import nl.mpi.oai.harvester.cycle.CycleFactory;
+import nl.mpi.oai.harvester.cycle.Endpoint;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running harvester. Instead of harvesting every provider once and
+ * exiting, the daemon keeps the JVM, and with it the compiled stylesheets,
+ * the responses obtained in preflight and the HTTP connections, alive. It
+ * periodically checks which providers are due and hands them to a worker.
+ * <br><br>
+ *
+ * A provider is due when its interval has passed since it was last
+ * attempted. The interval is taken from the overview, or from the
+ * harvest-interval setting if the overview does not define one for the
+ * endpoint. When the configuration file changes, it is read again and
+ * a new engine takes over; running workers finish in the engine, and
+ * with the configuration, they started with.
+ * <br><br>
+ *
+ * The responses obtained in preflight expire on the interval of the
+ * provider: a provider that is due is contacted in preflight again
+ * before it is harvested. After every poll in which harvests finished or
+ * workers stalled, the daemon logs a summary of them.
+ */
+class Daemon {
+
+    private static final Logger logger = LogManager.getLogger(Daemon.class);
+
+    /** The configuration file, checked for changes */
+    private final File configFile;
+
+    /** Command line arguments, applied again on every reload */
+    private final String[] args;
+
+    /** Name or URL of the only provider to harvest, or null */
+    private final String providerName;
+
+    /** The current configuration */
+    private Configuration config;
+
+    /** The engine harvesting the current configuration */
+    private volatile HarvestEngine engine;
+
+    /** Engines of earlier configurations that may still be running */
+    private final List<HarvestEngine> retired = new CopyOnWriteArrayList<>();
+
+    /** Last modification time of the configuration file that was read */
+    private long configModified;
+
+    /** The harvesting cycle, shared by all runs */
+    private final Cycle cycle;
+
+    /** Most recent harvest of each provider */
+    private final Map<String, Future<?>> running = new HashMap<>();
+
+    /** Start of the most recent harvest of each provider, in milliseconds */
+    private final Map<String, Long> lastRun = new HashMap<>();
+
+    private volatile boolean stopped = false;
+
+    /** Harvests that succeeded and failed since the last summary */
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /** Counts the outcome of every harvest, in any engine */
+    private final HarvestListener outcomes = new HarvestListener() {
+        @Override
+        public void done(Provider provider, boolean success) {
+            (success ? succeeded : failed).incrementAndGet();
+        }
+    };
+
+    /**
+     * Create a daemon; the configuration must have been read successfully
+     * before, and is available as Main.config.
+     *
+     * @param configFile the configuration file
+     * @param args the command line arguments
+     * @param providerName if not null, the only provider to harvest
+     */
+    Daemon(String configFile, String[] args, String providerName) {
+        this.configFile = new File(configFile);
+        this.args = args;
+        this.providerName = providerName;
+        this.config = Main.config;
+        this.configModified = this.configFile.lastModified();
+        this.cycle = new CycleFactory().createCycle(new File(config.getOverviewFile()));
+        this.engine = new HarvestEngine(config, cycle);
+        this.engine.setListener(outcomes);
+    }
+
+    /**
+     * Keep harvesting until the JVM is told to shut down.
+     */
+    void run() {
+        final Thread loop = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopped = true;
+            loop.interrupt();
+            for (HarvestEngine e : retired)
+                e.cancel();
+            engine.cancel();
+        }, "shutdown"));
+
+        config.log();
+        engine.preflight();
+
+        logger.info("Running as a daemon, checking for due providers every "
+                + config.getDaemonPoll() + " seconds");
+        while (!stopped) {
+            reloadIfChanged();
+            schedule();
+            summarize();
+            try {
+                Thread.sleep(config.getDaemonPoll() * 1000L);
+            } catch (InterruptedException e) {
+                // shutting down
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read the configuration again if the file changed. The new providers
+     * are contacted in preflight; stylesheets are not compiled again, as
+     * actions equal to existing ones share their pools.
+     */
+    private void reloadIfChanged() {
+        long modified = configFile.lastModified();
+        if (modified == configModified)
+            return;
+        configModified = modified;
+
+        logger.info("Configuration " + configFile + " changed, reading it again");
+        Configuration reloaded = Main.loadConfig(configFile.getPath(), args, providerName);
+        if (reloaded == null) {
+            logger.error("Keeping the previous configuration");
+            return;
+        }
+        if (!reloaded.getOverviewFile().equals(config.getOverviewFile()))
+            logger.warn("A new overview file only takes effect after a restart");
+
+        config = reloaded;
+        Main.config = reloaded;
+        config.log();
+
+        HarvestEngine previous = engine;
+        engine = new HarvestEngine(config, cycle);
+        engine.setListener(outcomes);
+        engine.preflight();
+        previous.shutdown();
+        retired.removeIf(HarvestEngine::isTerminated);
+        retired.add(previous);
+    }
+
+    /**
+     * Start a worker for every provider that is due and not running.
+     */
+    private void schedule() {
+        long now = System.currentTimeMillis();
+        for (Provider provider : config.getProviders()) {
+            if (!HarvestEngine.isSelected(provider, providerName))
+                continue;
+
+            // the same endpoint may be listed more than once, with different sets
+            final String key = provider.getOaiUrl() + Arrays.toString(provider.getSets());
+            Future<?> harvest = running.get(key);
+            if (harvest != null && !harvest.isDone())
+                continue;
+
+            Endpoint endpoint = cycle.next(provider.getOaiUrl(), "group");
+            long interval = endpoint.getInterval() > 0
+                    ? endpoint.getInterval() : config.getHarvestInterval();
+            long last = lastRun.computeIfAbsent(key,
+                    k -> endpoint.getAttemptedDate().getMillis());
+            if (now < last + interval * 1000)
+                continue;
+
+            logger.info("Provider " + provider + " is due for harvesting");
+            if (provider.expirePreflight(interval * 1000))
+                logger.debug("Preflight responses of " + provider + " expired");
+            lastRun.put(key, now);
+            running.put(key, engine.harvest(provider));
+        }
+    }
+
+    /**
+     * Log the harvests that finished and the stalls seen since the last
+     * summary, if there were any.
+     */
+    private void summarize() {
+        int ok = succeeded.getAndSet(0);
+        int bad = failed.getAndSet(0);
+        List<String> stalls = new ArrayList<>();
+        for (HarvestEngine e : retired)
+            stalls.addAll(e.takeStalls());
+        stalls.addAll(engine.takeStalls());
+        if (ok + bad == 0 && stalls.isEmpty())
+            return;
+
+        long busy = running.values().stream().filter(f -> !f.isDone()).count();
+        logger.info("Daemon cycle: " + (ok + bad) + " harvest(s) finished, "
+                + bad + " failed, " + busy + " running");
+        if (!stalls.isEmpty()) {
+            logger.warn(stalls.size() + " stall(s) since the last summary:");
+            for (String stall : stalls)
+                logger.warn("  " + stall);
+        }
+    }
+}
@@ -38,8 +38,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -49,24 +52,37 @@ public final class FileSynchronization {
 
     private static final Logger logger = LogManager.getLogger(FileSynchronization.class);
 
-    private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-    private static final String currentDate = formatter.format(new Date());
     private static final String CMDI = "/results/cmdi/";
     private static final String CMDI1_1 = "/results/cmdi-1_1/";
     private static final String CMDI1_2 = "/results/cmdi-1_2/";
 
     private static final ConcurrentHashMap<Provider, Statistic> statistic = new ConcurrentHashMap<>();
 
+    /** Working directory of the configuration each provider is harvested with */
+    private static final ConcurrentHashMap<Provider, String> workingDirectories = new ConcurrentHashMap<>();
+
     public static void execute(Provider provider, Path pathToDir) {
+        execute(provider, pathToDir, false);
+    }
+
+    /**
+     *   Synchronize the files of a provider with the endpoint
+     *
+     *   @param provider the provider
+     *   @param pathToDir the directory the provider's files are saved in
+     *   @param hashed whether the files are placed in the hashed layout,
+     *   so a file is found from its name
+     */
+    public static void execute(Provider provider, Path pathToDir, boolean hashed) {
 
         switch (provider.getDeletionMode()){
 
             case NO:
-                runSynchronizationForNoDeletionMode(provider, pathToDir);
+                runSynchronizationForNoDeletionMode(provider, pathToDir, hashed);
                 break;
             case TRANSIENT:
             case PERSISTENT:
-                runSynchronizationForTransientDeletionMode(provider, pathToDir);
+                runSynchronizationForTransientDeletionMode(provider, pathToDir, hashed);
                 break;
             default:
                 break;
@@ -88,24 +104,24 @@ public final class FileSynchronization {
 //        FileUtils.deleteQuietly(file);
 //    }
 
-    private static void runSynchronizationForTransientDeletionMode(final Provider provider, Path pathToDir){
-        String dir = Main.config.getWorkingDirectory()+ CMDI;
+    private static void runSynchronizationForTransientDeletionMode(final Provider provider, Path pathToDir, boolean hashed){
+        String dir = workingDirectory(provider)+ CMDI;
         File file = new File(dir + Util.toFileFormat(provider.getName())+"_remove.txt");
 
 //        String firstDirToRemove = Main.config.getWorkingDirectory() + CMDI + Util.toFileFormat(provider.getName())+"/";
 //        String scenedDirToRemove = Main.config.getWorkingDirectory() + CMDI1_1 + Util.toFileFormat(provider.getName())+"/";
 //        String thirdDirToRemove = Main.config.getWorkingDirectory() + CMDI1_2 + Util.toFileFormat(provider.getName())+"/";
 
-        delete(provider, file, pathToDir.toString());
+        delete(provider, file, pathToDir.toString(), hashed);
 //        delete(provider, file, scenedDirToRemove);
 //        delete(provider, file, thirdDirToRemove);
         FileUtils.deleteQuietly(file);
     }
 
-    private static void runSynchronizationForNoDeletionMode(final Provider provider, Path pathToDir){
-        String dir1 = Main.config.getWorkingDirectory() + CMDI + Util.toFileFormat(provider.getName());
-        String dir2 = Main.config.getWorkingDirectory() + CMDI1_2 + Util.toFileFormat(provider.getName());
-        String dir3 = Main.config.getWorkingDirectory() + CMDI1_1 + Util.toFileFormat(provider.getName());
+    private static void runSynchronizationForNoDeletionMode(final Provider provider, Path pathToDir, boolean hashed){
+        String dir1 = workingDirectory(provider) + CMDI + Util.toFileFormat(provider.getName());
+        String dir2 = workingDirectory(provider) + CMDI1_2 + Util.toFileFormat(provider.getName());
+        String dir3 = workingDirectory(provider) + CMDI1_1 + Util.toFileFormat(provider.getName());
 
         File file = new File(dir1 + "/current.txt");
         String resumptionToken = null;
@@ -116,15 +132,9 @@ public final class FileSynchronization {
             while (!done) {
                 if (counter == provider.maxRetryCount) {
                     break;
-                } else {
-                    int retryDelay = provider.getRetryDelay(counter);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
-                    }
+                } else if (!provider.retryPause(provider.getRetryDelay(counter))) {
+                    // cancelled or out of time
+                    break;
                 }
                 try {
                     ListIdentifiers listIdentifiers = null;
@@ -139,7 +149,7 @@ public final class FileSynchronization {
                     if(resumptionToken == null || resumptionToken.isEmpty()){
                         done = true;
                     }
-                    NodeList nodeList = (NodeList) provider.xpath.evaluate(
+                    NodeList nodeList = (NodeList) provider.getXPath().evaluate(
                             "//*[starts-with(local-name(),'identifier') "
                                     + "and parent::*[local-name()='header' "
                                     + "and not(@status='deleted')]]/text()",
@@ -158,20 +168,81 @@ public final class FileSynchronization {
         } catch (IOException e) {
             logger.error("No File "+ file + ": ", e);
         }
-        move(file, dir1);
-        move(file, dir2);
-        move(file, dir3);
-        deleteDirectory(dir1, provider);
-        deleteDirectory(dir2, provider);
-        deleteDirectory(dir3, provider);
+        if (provider.isCancelled()) {
+            // the list of current identifiers is incomplete, keep all files
+            logger.warn("Synchronization of " + provider + " cancelled, no files removed");
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+        for (String dir : new String[]{dir1, dir2, dir3}) {
+            if (reconcile(provider, file, dir))
+                continue;
+            move(file, dir, hashed);
+            deleteDirectory(dir, provider, hashed);
+        }
 
         FileUtils.deleteQuietly(file);
     }
 
+    /**
+     *   Removes the records of a record store that are not in the list
+     *   provided in file. The segment files of the store are left in place.
+     *
+     *   @return true if the directory holds a record store
+     */
+    private static boolean reconcile(final Provider provider, final File file, final String dir){
+        Path dirPath = Paths.get(dir);
+        RecordStore records;
+        try {
+            records = RecordStore.find(dirPath);
+        } catch (IOException e) {
+            // there are segment files, which must not be moved or deleted
+            logger.error("Cannot open record store in " + dirPath + ": ", e);
+            return true;
+        }
+        if (records == null)
+            return false;
+
+        Set<String> current;
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            current = lines.collect(Collectors.toSet());
+        } catch (IOException e) {
+            logger.error("No File "+ file + ": ", e);
+            return true;
+        }
+        try {
+            for (String key : records.retain(current)) {
+                saveToHistoryFile(provider, dirPath.resolve(key), Operation.DELETE);
+                logger.info("Deleted record: " + key + " from " + records);
+            }
+        } catch (IOException e) {
+            logger.error("Error while deleting records from " + records + " : ", e);
+        }
+        return true;
+    }
+
     /**
      *   Removes temporary directory and renames to original name
      */
-    private static void deleteDirectory(final String dir, final Provider provider){
+    private static void deleteDirectory(final String dir, final Provider provider, boolean hashed){
+        if (hashed && Files.isDirectory(Paths.get(dir))) {
+            // the files left are in the subdirectories
+            Path top = Paths.get(dir);
+            try (Stream<Path> paths = Files.walk(top)) {
+                paths.sorted(Comparator.reverseOrder()).filter(p -> !p.equals(top)).forEach(path -> {
+                    try {
+                        boolean isFile = Files.isRegularFile(path);
+                        Files.delete(path);
+                        if (isFile)
+                            saveToHistoryFile(provider, path, Operation.DELETE);
+                    } catch (IOException e) {
+                        logger.error("Unable to delete File " + path + ": ", e);
+                    }
+                });
+            } catch (IOException e) {
+                logger.error("Unable to delete directory : ", e);
+            }
+        }
         File[] files = new File(dir).listFiles();
         if(files != null) {
             for (File f : files) {
@@ -213,12 +284,19 @@ public final class FileSynchronization {
     /**
      *   Move file  of temporary directory
      */
-    private static void  move(final File file, final String dir){
+    private static void  move(final File file, final String dir, boolean hashed){
         Stream<String> fileStream = getAsStream(file);
 
         if(fileStream != null) {
             fileStream.forEach(l -> {
                 try {
+                    if (hashed) {
+                        Path source = OutputDirectory.hashedLocation(Paths.get(dir), l);
+                        if (Files.exists(source))
+                            FileUtils.moveFileToDirectory(source.toFile(),
+                                    OutputDirectory.hashedLocation(Paths.get(dir + "_new"), l).getParent().toFile(), true);
+                        return;
+                    }
                     FileUtils.moveFileToDirectory(
                             FileUtils.getFile(dir + "/" + l),
                             FileUtils.getFile(dir + "_new/"), true);
@@ -233,13 +311,30 @@ public final class FileSynchronization {
      *
      *   Removes files based on list provided in file
      */
-    private static void delete(final Provider provider, final File file, final String dir){
+    private static void delete(final Provider provider, final File file, final String dir, boolean hashed){
         Stream<String> fileStream = getAsStream(file);
 
         Path dirPath = FileSystems.getDefault().getPath(dir);
+        RecordStore store = null;
+        try {
+            store = RecordStore.find(dirPath);
+        } catch (IOException e) {
+            logger.error("Cannot open record store in " + dirPath + ": ", e);
+        }
+        final RecordStore records = store;
         if(fileStream != null) {
             fileStream.forEach(l -> {
-                Path path = dirPath.resolve(l);
+                Path path = hashed ? OutputDirectory.hashedLocation(dirPath, l) : dirPath.resolve(l);
+                if (records != null) {
+                    try {
+                        if (records.delete(l)) {
+                            saveToHistoryFile(provider, path, Operation.DELETE);
+                            logger.info("Deleted record: " + l + " from " + records);
+                        }
+                    } catch (IOException e) {
+                        logger.error("Error while deleting record: " + l + " from " + records + " : ", e);
+                    }
+                }
                 if(Files.exists(path)){
                     try {
                         Files.delete(path);
@@ -254,11 +349,11 @@ public final class FileSynchronization {
     }
 
     public static void saveStatistics(final Provider provider){
-        String dir = Main.config.getWorkingDirectory()+ CMDI;
+        String dir = workingDirectory(provider)+ CMDI;
         File file = new File(dir + Util.toFileFormat(provider.getName())+"_history.xml");
         Statistic stats = statistic.get(provider);
         StringBuffer sb = new StringBuffer();
-          sb.append("<harvest date=\"").append(currentDate).append("\" ")
+          sb.append("<harvest date=\"").append(currentDate()).append("\" ")
              .append("operationTime=\"" + stats.getHarvestTime() + "s\" ")
              .append("requestsToServer=\"" + stats.getRequests() + "\" ")
              .append("collectedRecords=\"" + stats.getHarvestedRecords() + "\" ")
@@ -266,6 +361,11 @@ public final class FileSynchronization {
         writeToHistoryFile(file, sb.toString());
     }
 
+    private static String currentDate(){
+        // not kept in a constant: a daemon runs for more than one day
+        return new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+    }
+
     private static void writeToHistoryFile(final File file, String toSave){
         try(FileWriter deltaWriter = new FileWriter(file, true)) {
             deltaWriter.write(toSave);
@@ -279,15 +379,26 @@ public final class FileSynchronization {
         return  statistic.get(provider);
     }
 
-    public static void addProviderStatistic(Provider provider){
+    public static void addProviderStatistic(Provider provider, String workingDirectory){
         statistic.put(provider, new Statistic());
+        workingDirectories.put(provider, workingDirectory);
+    }
+
+    public static void removeProviderStatistic(Provider provider){
+        statistic.remove(provider);
+        workingDirectories.remove(provider);
     }
+
+    private static String workingDirectory(Provider provider){
+        return workingDirectories.get(provider);
+    }
+
     public static void saveToHistoryFile(final Provider provider, final Path filePath, final Operation operation){
-        String dir = Main.config.getWorkingDirectory()+ CMDI;
+        String dir = workingDirectory(provider)+ CMDI;
         File file = new File(dir + Util.toFileFormat(provider.getName())+"_history.xml");
             StringBuffer sb = new StringBuffer();
                      sb.append("<file ")
-                        .append("harvestDate=\"").append(currentDate).append("\" ")
+                        .append("harvestDate=\"").append(currentDate()).append("\" ")
                         .append("name=\"").append(filePath.getFileName()).append("\" ")
                         .append("operation=\"" + operation.name()).append("\" ")
                         .append("/>\n");
@@ -295,7 +406,7 @@ public final class FileSynchronization {
     }
 
     public static  void saveFilesToRemove(String file, Provider provider){
-        String dir = Main.config.getWorkingDirectory()+ CMDI + Util.toFileFormat(provider.getName());
+        String dir = workingDirectory(provider)+ CMDI + Util.toFileFormat(provider.getName());
         java.io.File toRemove = new java.io.File(dir+"_remove.txt");
         try(FileWriter writer = new FileWriter(toRemove, true)) {
             writer.write(file + "\n");
@@ -0,0 +1,368 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.cycle.Cycle;
+import nl.mpi.oai.harvester.cycle.CycleFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Harvests the providers of a configuration within the calling JVM. This
+ * is what the command line harvester uses, but the engine can also be
+ * embedded in another application: read a configuration, create an engine
+ * for it, optionally set a listener, and run it.
+ * <br><br>
+ *
+ * Every engine uses its own configuration and workers, so several engines
+ * can run at the same time. Actions equal to each other share their
+ * resource pools, also between engines; stylesheets, for example, are
+ * compiled only once. Engines harvesting the same providers should not
+ * write to the same overview file. When an engine has shut down and its
+ * workers are done, the threads of its configuration are stopped, so a
+ * configuration is used by one engine only. Once the workers of every
+ * engine are done, the record stores are closed.
+ */
+public class HarvestEngine {
+
+    private static final Logger logger = LogManager.getLogger(HarvestEngine.class);
+
+    /** The configuration harvested */
+    private final Configuration config;
+
+    /** The harvesting cycle */
+    private final Cycle cycle;
+
+    /** Executor running the workers */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /** Notified of the records harvested and of the outcome */
+    private volatile HarvestListener listener = HarvestListener.NONE;
+
+    /** Watches the workers for stalls, null if disabled */
+    private final Watchdog watchdog;
+
+    /** Executor contacting the providers ahead of harvesting, while it runs */
+    private volatile ExecutorService preflights = null;
+
+    /** Whether the engine was cancelled */
+    private volatile boolean cancelled = false;
+
+    /** Number of engines whose workers may still run */
+    private static final AtomicInteger engines = new AtomicInteger();
+
+    /**
+     * Create an engine using the overview file named in the configuration.
+     *
+     * @param config the configuration, read and ready for use
+     */
+    public HarvestEngine(Configuration config) {
+        this(config, new CycleFactory().createCycle(new File(config.getOverviewFile())));
+    }
+
+    /**
+     * Create an engine using an existing cycle.
+     *
+     * @param config the configuration, read and ready for use
+     * @param cycle the harvesting cycle
+     */
+    public HarvestEngine(Configuration config, Cycle cycle) {
+        this.config = config;
+        this.cycle = cycle;
+        this.executor = new ScheduledThreadPoolExecutor(config.getMaxJobs()) {
+            @Override
+            protected void terminated() {
+                super.terminated();
+                // no worker uses the configuration any more
+                config.shutdown();
+                // nor, when no other engine runs, the record stores
+                if (engines.decrementAndGet() == 0)
+                    RecordStore.closeAll();
+                // the budget of this engine no longer applies
+                MemoryGovernor.getInstance().removeBudget(HarvestEngine.this);
+            }
+        };
+        engines.incrementAndGet();
+        this.watchdog = (config.getStallTimeout() > 0)
+                ? new Watchdog(config.getStallTimeout(), config.getStallAction(), executor)
+                : null;
+
+        // the heap is shared, so is the governor; it applies the largest
+        // budget of the engines running
+        MemoryGovernor.getInstance().setBudget(this, config.getMemoryBudget() << 20);
+    }
+
+    /**
+     * Set the listener for the harvests started after this call
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(HarvestListener listener) {
+        this.listener = (listener != null) ? listener : HarvestListener.NONE;
+    }
+
+    /**
+     * Get the configuration of this engine
+     *
+     * @return the configuration
+     */
+    public Configuration getConfiguration() {
+        return config;
+    }
+
+    /**
+     * Contact all providers concurrently before harvesting starts, so each
+     * endpoint is asked for Identify, ListMetadataFormats and ListSets only
+     * once, and workers do not spend their time on it one after another.
+     * Preflight stops when the engine is cancelled.
+     *
+     * @return false if preflight was cut short
+     */
+    public boolean preflight() {
+        return preflight(0);
+    }
+
+    /**
+     * Contact all providers concurrently, for at most the given time.
+     * Requests still running when the time is up are abandoned; their
+     * threads don't keep the JVM alive.
+     *
+     * @param timeout maximum time in nanoseconds, or 0 for no limit
+     * @return false if the time ran out, the engine was cancelled or the
+     * calling thread was interrupted
+     */
+    private boolean preflight(long timeout) {
+        int jobs = config.getPreflightJobs();
+        if (jobs <= 0 || config.isDryRun())
+            return !cancelled;
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(jobs, r -> {
+            Thread thread = new Thread(r, "preflight-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        preflights = pool;
+        // cancelled before the pool was published
+        if (cancelled)
+            pool.shutdownNow();
+        for (Provider provider : config.getProviders()) {
+            try {
+                pool.execute(() -> {
+                    try {
+                        provider.preflight();
+                    } catch (RuntimeException e) {
+                        logger.error("Preflight of " + provider.getOaiUrl() + " failed", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        pool.shutdown();
+        boolean done = false;
+        try {
+            done = pool.awaitTermination(timeout > 0 ? timeout : Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        preflights = null;
+        if (!done || cancelled) {
+            pool.shutdownNow();
+            logger.warn("Preflight of " + config.getProviders().size() + " providers cut short");
+            return false;
+        }
+        logger.info("Preflight of " + config.getProviders().size() + " providers done");
+        return true;
+    }
+
+    /**
+     * Start harvesting a provider. The harvest runs as soon as fewer than
+     * max-jobs harvests of this engine are running.
+     *
+     * @param provider a provider of the configuration
+     * @return the harvest, done when the worker has finished
+     */
+    public Future<?> harvest(Provider provider) {
+        Worker worker = new Worker(provider, config, cycle, listener, watchdog);
+        if (config.getPreflightJobs() > 0 && !config.isDryRun() && !provider.isPreflighted()) {
+            // its preflight responses were expired; ask for them again
+            return executor.submit(() -> {
+                provider.preflight();
+                worker.run();
+            });
+        }
+        return executor.submit(worker);
+    }
+
+    /**
+     * Harvest the providers of the configuration once, and wait until they
+     * are done or the run deadline expires.
+     *
+     * @param providerName name or URL of the only provider to harvest, or
+     * null for all of them
+     * @return false if the run deadline expired or the calling thread was
+     * interrupted
+     */
+    public boolean run(String providerName) {
+        config.log();
+
+        // the deadline covers preflight as well
+        int deadline = config.getRunDeadline();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(deadline);
+
+        if (!preflight(deadline > 0 ? TimeUnit.SECONDS.toNanos(deadline) : 0)) {
+            if (deadline > 0 && System.nanoTime() - end >= 0)
+                logger.warn("Run deadline of " + deadline + " seconds expired during preflight");
+            cancel();
+            summarize(false);
+            return false;
+        }
+
+        try {
+            for (Provider provider : config.getProviders()) {
+                // If a provider name was specified, skip others
+                if (!isSelected(provider, providerName)) {
+                    continue;
+                }
+                harvest(provider);
+            }
+        } catch (RejectedExecutionException e) {
+            // cancelled meanwhile
+        }
+
+        executor.shutdown();
+
+        boolean completed = false;
+        try {
+            if (executor.awaitTermination(deadline > 0 ? end - System.nanoTime() : Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                // not cut short by a shutdown
+                completed = !cancelled;
+            } else {
+                logger.warn("Run deadline of " + deadline + " seconds expired");
+                cancel();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+        summarize(completed);
+        return completed;
+    }
+
+    /**
+     * Log the outcome of a run, including the stalls seen.
+     */
+    private void summarize(boolean completed) {
+        logger.info("Run " + (completed ? "completed" : "cut short") + ", "
+                + executor.getCompletedTaskCount() + " provider(s) processed");
+        if (watchdog != null) {
+            watchdog.stop();
+            List<String> stalls = watchdog.getStalls();
+            if (!stalls.isEmpty()) {
+                logger.warn(stalls.size() + " stall(s) during the run:");
+                for (String stall : stalls)
+                    logger.warn("  " + stall);
+            }
+        }
+    }
+
+    /**
+     * Get the stalls seen so far
+     *
+     * @return a description of each stall, empty if the watchdog is
+     * disabled
+     */
+    public List<String> getStalls() {
+        return (watchdog != null) ? watchdog.getStalls() : Collections.emptyList();
+    }
+
+    /**
+     * Get the stalls seen since the previous call
+     *
+     * @return a description of each new stall, empty if the watchdog is
+     * disabled
+     */
+    public List<String> takeStalls() {
+        return (watchdog != null) ? watchdog.takeStalls() : Collections.emptyList();
+    }
+
+    /**
+     * Accept no more harvests; the ones started or waiting are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Check if all harvests are done after a shutdown
+     *
+     * @return true if the engine is shut down and no worker is running
+     */
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    /**
+     * Cancel the workers still running and wait for them to wind down, at
+     * most shutdown-grace seconds. Workers check for interruption between
+     * requests and records, so the wait is normally short. Preflight, if
+     * running, is stopped as well.
+     */
+    public void cancel() {
+        cancelled = true;
+        ExecutorService pool = preflights;
+        if (pool != null)
+            pool.shutdownNow();
+        if (executor.isTerminated())
+            return;
+
+        int grace = config.getShutdownGrace();
+        List<Runnable> waiting = executor.shutdownNow();
+        logger.warn("Cancelling running workers, " + waiting.size()
+                + " provider(s) not started");
+        try {
+            if (!executor.awaitTermination(grace, TimeUnit.SECONDS))
+                logger.error("Workers did not stop within " + grace + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if a provider is the one selected.
+     *
+     * @param provider the provider
+     * @param providerName name or URL of the selected provider, or null
+     * @return true if the provider should be harvested
+     */
+    static boolean isSelected(Provider provider, String providerName) {
+        return providerName == null || providerName.equals(provider.getName())
+                || providerName.equals(provider.getOaiUrl());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.metadata.Metadata;
+
+/**
+ * Receives notifications from a harvest run by a {@link HarvestEngine}.
+ * Methods are called on the worker threads, concurrently for different
+ * providers, so implementations must be thread safe. They should return
+ * quickly, as the worker waits for them.
+ * <br><br>
+ *
+ * All methods do nothing by default.
+ */
+public interface HarvestListener {
+
+    /** Listener ignoring all notifications */
+    HarvestListener NONE = new HarvestListener() { };
+
+    /**
+     * A record has been processed by an action sequence. In the
+     * ListRecords scenario the record is a complete response, which may
+     * contain many records.
+     *
+     * @param provider the provider harvested
+     * @param record the record, only valid during the call
+     */
+    default void record(Provider provider, Metadata record) {
+    }
+
+    /**
+     * A response from the provider has been processed.
+     *
+     * @param provider the provider harvested
+     * @param responses number of responses processed so far by the
+     * current action sequence
+     */
+    default void progress(Provider provider, int responses) {
+    }
+
+    /**
+     * Harvesting of a provider has ended.
+     *
+     * @param provider the provider harvested
+     * @param success true if the harvest succeeded
+     */
+    default void done(Provider provider, boolean success) {
+    }
+}
@@ -18,19 +18,13 @@
 
 package nl.mpi.oai.harvester.control;
 
-import nl.mpi.oai.harvester.Provider;
-import nl.mpi.oai.harvester.cycle.Cycle;
-import nl.mpi.oai.harvester.cycle.CycleFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
-import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 
 /**
@@ -42,37 +36,69 @@ public class Main {
     private static final String sep = System.getProperty("file.separator");
     private static final Logger logger = LogManager.getLogger(Main.class);
 
-    /** Object containing entries from configuration file. */
+    /**
+     * Object containing entries from configuration file. Only set by the
+     * command line harvester; harvesting itself uses the configuration
+     * given to the {@link HarvestEngine}.
+     */
     public static Configuration config;
 
-    private static void runHarvesting(Configuration config) {
-        runHarvesting(config, null); // delegate to the new overload
-    }
-
     private static void runHarvesting(Configuration config, String providerName) {
-        config.log();
+        HarvestEngine engine = new HarvestEngine(config);
 
-        ExecutorService executor = new ScheduledThreadPoolExecutor(config.getMaxJobs());
+        /* On SIGTERM (or ^C) cancel the running workers, and give them some
+           time to record in the overview how far they got.
+         */
+        Thread hook = new Thread(engine::cancel, "shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
 
-        // create a CycleFactory
-        CycleFactory factory = new CycleFactory();
-        // get a cycle based on the overview file
-        File OverviewFile = new File(config.getOverviewFile());
-        Cycle cycle = factory.createCycle(OverviewFile);
+        engine.run(providerName);
 
-        for (Provider provider : config.getProviders()) {
-            // If a provider name was specified, skip others
-            if (providerName != null && !provider.getName().equals(providerName)) {
-                continue;
-            }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, the hook takes care of it
+        }
+    }
 
-            // create a new worker
-            Worker worker = new Worker(provider, config, cycle);
-            executor.execute(worker);
+    /**
+     * Read a configuration file, applying the options given on the command
+     * line.
+     *
+     * @param configFile the configuration file
+     * @param args the command line arguments
+     * @param providerName if not null, the only provider to harvest
+     * @return the configuration, or null if it could not be read
+     */
+    static Configuration loadConfig(String configFile, String[] args,
+            String providerName) {
+        // Process options given on the command line
+        Configuration config = new Configuration();
+        for (String arg : args) {
+            if (arg.indexOf('=') > -1) {
+                String[] tmp = arg.split("=");
+                if (tmp.length == 1) {
+                    config.setOption(tmp[0], null);
+                } else if (tmp.length >= 2) {
+                    config.setOption(tmp[0], tmp[1]);
+                }
+            }
         }
+        // only create the provider asked for, if any
+        config.selectProvider(providerName);
+        try {
+            config.readConfig(configFile);
+        } catch (ParserConfigurationException | SAXException 
+            | XPathExpressionException | IOException ex) {
+            logger.error("Unable to read configuration file", ex);
+            return null;
+        }
+
+        config.applyTimeoutSetting();
 
-        executor.shutdown();
+        return config;
     }
+
     public static void main(String[] args) {
         
         logger.info("Welcome to the main OAI Harvest Manager!");
@@ -106,35 +132,17 @@ public class Main {
             configFile = "resources" + sep + "config.xml";
         }
 
-        // Process options given on the command line
-        config = new Configuration();
-        for (String arg : args) {
-            if (arg.indexOf('=') > -1) {
-                String[] tmp = arg.split("=");
-                if (tmp.length == 1) {
-                    config.setOption(tmp[0], null);
-                } else if (tmp.length >= 2) {
-                    config.setOption(tmp[0], tmp[1]);
-                }
-            }
-        }
-        try {
-            config.readConfig(configFile);
-        } catch (ParserConfigurationException | SAXException 
-            | XPathExpressionException | IOException ex) {
-            logger.error("Unable to read configuration file", ex);
+        config = loadConfig(configFile, args, providerName);
+        if (config == null)
             return;
-        }
-
-        config.applyTimeoutSetting();
         
         SSLFix.execute();
 
-        // Pass the provider name if specified
-        if (providerName != null) {
-            runHarvesting(config, providerName);
+        if (config.isDaemon()) {
+            // keep running, harvesting providers on their own schedule
+            new Daemon(configFile, args, providerName).run();
         } else {
-            runHarvesting(config);
+            runHarvesting(config, providerName);
         }
         
         logger.info("Goodbye from the main OAI Harvest Manager!");
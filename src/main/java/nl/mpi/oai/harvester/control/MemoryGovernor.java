@@ -0,0 +1,167 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Keeps the memory taken by the responses being processed within a budget.
+ * Before a worker turns a response into a tree, it reserves an estimate of
+ * the memory needed; while the budget is used up, it waits with the
+ * response still on disk, and makes no new requests. A worker is always
+ * allowed to go ahead if nothing else is reserved, so a response larger
+ * than the budget is processed, but on its own.
+ * <br><br>
+ *
+ * Responses to ListRecords and ListIdentifiers, and the GetRecord
+ * responses fetched for the identifiers listed, are all governed. The
+ * records a split action makes of a response are processed while the
+ * response is reserved, so they are covered by its estimate.
+ * <br><br>
+ *
+ * All workers in the JVM share one governor, as they share the heap.
+ * Each engine sets its own budget, and the largest budget of the engines
+ * running applies; an engine without a budget doesn't lift the limit set
+ * by another one.
+ */
+public class MemoryGovernor {
+
+    private static final Logger logger = LogManager.getLogger(MemoryGovernor.class);
+
+    /**
+     * Rough ratio between the memory taken by a response while it is
+     * processed (its tree, and the copies of the records made by a split
+     * or strip action) and the size of the response itself.
+     */
+    static final int TREE_FACTOR = 10;
+
+    private static final MemoryGovernor instance = new MemoryGovernor();
+
+    /** Maximum number of bytes reserved at the same time, 0 for no limit */
+    private long budget = 0;
+
+    /** The budgets set, by owner */
+    private final Map<Object, Long> budgets = new IdentityHashMap<>();
+
+    /** Number of bytes reserved at the moment */
+    private long reserved = 0;
+
+    /**
+     * Get the governor shared by all workers
+     *
+     * @return the governor
+     */
+    public static MemoryGovernor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Set the budget of an owner, replacing the one it set before. The
+     * largest budget set applies. Workers waiting for memory are
+     * reconsidered.
+     *
+     * @param owner the owner of the budget, an engine
+     * @param budget maximum number of bytes, 0 for no limit
+     */
+    public synchronized void setBudget(Object owner, long budget) {
+        if (budget > 0)
+            budgets.put(owner, budget);
+        else
+            budgets.remove(owner);
+
+        long largest = 0;
+        for (long b : budgets.values())
+            largest = Math.max(largest, b);
+        if (largest != this.budget)
+            logger.info("Memory budget set to " + (largest > 0 ? (largest >> 20) + " MB" : "no limit")
+                    + (this.budget > 0 ? ", was " + (this.budget >> 20) + " MB" : ""));
+        this.budget = largest;
+        notifyAll();
+    }
+
+    /**
+     * Remove the budget of an owner.
+     *
+     * @param owner the owner of the budget
+     */
+    public void removeBudget(Object owner) {
+        setBudget(owner, 0);
+    }
+
+    /**
+     * Estimate the memory needed to process a response.
+     *
+     * @param response the response, as received
+     * @return the estimated number of bytes, 0 if unknown
+     */
+    public static long estimate(DocumentSource response) {
+        long size = response.getSize();
+        return (size > 0) ? size * TREE_FACTOR : 0;
+    }
+
+    /**
+     * Reserve memory, waiting until the budget allows it. If the calling
+     * thread is interrupted while waiting, its interrupt status is restored
+     * and the wait is abandoned.
+     *
+     * @param bytes the number of bytes needed
+     * @return the number of bytes reserved, to be passed to release
+     * @throws CancellationException when interrupted while waiting
+     */
+    public synchronized long reserve(long bytes) {
+        boolean waited = false;
+        while (budget > 0 && reserved > 0 && reserved + bytes > budget) {
+            if (!waited) {
+                logger.info("Waiting for " + (bytes >> 20) + " MB, "
+                        + (reserved >> 20) + " MB of " + (budget >> 20) + " MB in use");
+                waited = true;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for memory");
+            }
+        }
+        reserved += bytes;
+        return bytes;
+    }
+
+    /**
+     * Release memory reserved before.
+     *
+     * @param bytes the number returned by reserve
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Get the number of bytes reserved at the moment
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+}
@@ -22,14 +22,25 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 /**
  * A directory used to save files, which may enforce rules on the file
  * structure below it. (In practice: it may require files to be
  * distributed in subdirectories to keep the number of files in one
  * directory below a set threshold.)
+ * <br><br>
+ *
+ * In the hashed layout, a file is placed two levels of subdirectories
+ * deep, named after a hash of the file name. Its location then only
+ * depends on its name, so it can be found again without searching, and
+ * the subdirectories fill evenly.
  *
  * @author Lari Lampen (MPI-PL)
  */
@@ -42,11 +53,24 @@ public class OutputDirectory {
     /** The base directory path. */
     private final Path base;
 
+    /** Whether files are placed by a hash of their name. */
+    private final boolean hashed;
+
+    /** Whether the base directory is known to exist. */
+    private volatile boolean baseExists = true;
+
+    /** The hashed subdirectories known to exist. */
+    private final Set<Path> shards = ConcurrentHashMap.newKeySet();
+
     // These are used to keep count of the current subdirectory and
     // the number of files in it.
     private int dirCounter = 0;
     private Path currentDir = null;
     private int fileCounter = 0;
+    private boolean currentDirExists = false;
+
+    /** The subdirectories made so far, by name. */
+    private final Map<String, OutputDirectory> subdirectories = new ConcurrentHashMap<>();
 
     /**
      * Create a new instance with the specified base directory path
@@ -70,13 +94,29 @@ public class OutputDirectory {
      * @throws IOException problem with the base path
      */
     public OutputDirectory(Path base, int limit) throws IOException {
+	this(base, limit, false);
+    }
+
+    /**
+     * Create a new instance with the specified base directory path,
+     * either in the hashed layout or with the given limit (maximum
+     * number of files within a subdirectory). If limit=0, no limit is
+     * enforced; in the hashed layout, the limit is not used.
+     * 
+     * @param base base path
+     * @param limit maximum number of files within a subdirectory
+     * @param hashed whether files are placed by a hash of their name
+     * @throws IOException problem with the base path
+     */
+    public OutputDirectory(Path base, int limit, boolean hashed) throws IOException {
 	this.base = base;
-	this.limit = limit;
+	this.hashed = hashed;
+	this.limit = hashed ? 0 : limit;
 
 	// Start off by making sure the base directory actually exists.
 	Util.ensureDirExists(base);
 
-	if (limit > 0) {
+	if (this.limit > 0) {
 	    // If we're using subdirectories and there already are
 	    // some, skip the existing ones.
 	    do {
@@ -86,15 +126,27 @@ public class OutputDirectory {
     }
 
     /**
-     * Create a new subdirectory under this one which has the same file limit
-     * constraint as this one.
+     * Get a subdirectory under this one which has the same file limit
+     * constraint as this one. It is made the first time it is asked for,
+     * and shared by everyone asking for it afterwards, so the files placed
+     * in it count towards the same limit.
      * 
      * @param name name of the new directory
      * @throws IOException problem with the new directory
      * @return output directory
      */
     public OutputDirectory makeSubdirectory(String name) throws IOException {
-	return new OutputDirectory(base.resolve(name), limit);
+	OutputDirectory sub = subdirectories.get(name);
+	if (sub != null)
+	    return sub;
+	synchronized (subdirectories) {
+	    sub = subdirectories.get(name);
+	    if (sub == null) {
+		sub = new OutputDirectory(base.resolve(name), limit, hashed);
+		subdirectories.put(name, sub);
+	    }
+	    return sub;
+	}
     }
 
     /**
@@ -106,21 +158,109 @@ public class OutputDirectory {
      * @return path to the new file
      * @throws IOException problem with the new file
      */
-    public synchronized Path placeNewFile(String file) throws IOException {
+    public Path placeNewFile(String file) throws IOException {
+	if (!baseExists) {
+	    Util.ensureDirExists(base);
+	    baseExists = true;
+	}
+	if (hashed) {
+	    Path path = hashedLocation(base, file);
+	    Path shard = path.getParent();
+	    if (!shards.contains(shard)) {
+		Util.ensureDirExists(shard);
+		shards.add(shard);
+	    }
+	    return path;
+	}
 	if (limit == 0) {
 	    return base.resolve(file);
 	}
-	Util.ensureDirExists(currentDir);
+	return placeInOrder(file);
+    }
+
+    /**
+     * Place a file in the current numbered subdirectory, starting the
+     * next one when it is full.
+     */
+    private synchronized Path placeInOrder(String file) throws IOException {
 	if (fileCounter < limit) {
 	    fileCounter++;
 	} else {
 	    fileCounter = 1;
 	    nextCurrentDir();
+	}
+	// a subdirectory is only checked when it is started
+	if (!currentDirExists) {
 	    Util.ensureDirExists(currentDir);
+	    currentDirExists = true;
 	}
 	return currentDir.resolve(file);
     }
 
+    /**
+     * Given filename (without path), return the location a file of that
+     * name is placed at, without placing it. In the hashed layout or
+     * without a limit, this is where an earlier file of that name is;
+     * otherwise it is in the current numbered subdirectory.
+     * 
+     * @param file name of the file
+     * @return path to the file
+     */
+    public Path locate(String file) {
+	if (hashed)
+	    return hashedLocation(base, file);
+	if (limit == 0)
+	    return base.resolve(file);
+	synchronized (this) {
+	    return currentDir.resolve(file);
+	}
+    }
+
+    /**
+     * Forget which directories are known to exist, here and in the
+     * subdirectories made, after directories may have been removed, as
+     * synchronization does. Each is checked again the next time a file
+     * is placed in it.
+     */
+    public void forget() {
+	baseExists = false;
+	shards.clear();
+	synchronized (this) {
+	    currentDirExists = false;
+	}
+	for (OutputDirectory sub : subdirectories.values())
+	    sub.forget();
+    }
+
+    /**
+     * Check if files are placed by a hash of their name.
+     * 
+     * @return true for the hashed layout
+     */
+    public boolean isHashed() {
+	return hashed;
+    }
+
+    /**
+     * Get the location of a file in a directory in the hashed layout.
+     * This is computed from the name alone.
+     * 
+     * @param dir the directory
+     * @param file name of the file
+     * @return path to the file
+     */
+    public static Path hashedLocation(Path dir, String file) {
+	CRC32 crc = new CRC32();
+	crc.update(file.getBytes(StandardCharsets.UTF_8));
+	int hash = (int) crc.getValue();
+	return dir.resolve(hex(hash >>> 8)).resolve(hex(hash)).resolve(file);
+    }
+
+    private static String hex(int b) {
+	final String digits = "0123456789abcdef";
+	return new String(new char[] { digits.charAt((b >>> 4) & 0xf), digits.charAt(b & 0xf) });
+    }
+
     /**
      * Increment dirCounter and currentDir to point to the next
      * subdirectory, which may or may not exist.
@@ -128,10 +268,13 @@ public class OutputDirectory {
     private void nextCurrentDir() {
 	dirCounter++;
 	currentDir = base.resolve(String.format("%04d", dirCounter));
+	currentDirExists = false;
     }
 
     @Override
     public String toString() {
+    if (hashed)
+        return base.toString() + " [hashed]";
     if (limit > 0)
         return base.toString() + " [limit " + limit + "]";
     return base.toString();
@@ -145,13 +288,13 @@ public class OutputDirectory {
 
     @Override
     public int hashCode() {
-	return base.hashCode() + 29 * limit;
+	return base.hashCode() + 29 * limit + (hashed ? 7 : 0);
     }
     @Override
     public boolean equals(Object o) {
 	if (o instanceof OutputDirectory) {
 	    OutputDirectory od = (OutputDirectory)o;
-	    return (base.equals(od.base) && limit == od.limit);
+	    return (base.equals(od.base) && limit == od.limit && hashed == od.hashed);
 	}
 	return false;
     }
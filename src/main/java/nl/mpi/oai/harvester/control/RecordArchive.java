@@ -0,0 +1,336 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * An archive of the records of a provider, written while the records are
+ * saved, so they don't have to be read back from disk to be packed. The
+ * archive is written under a temporary name, and moved into place when
+ * the harvest of the provider completes successfully; otherwise it is
+ * removed, leaving an earlier archive in place.
+ * <br><br>
+ *
+ * An incremental harvest only saves the records that changed, so its
+ * archive is a delta: it gets the time the harvest of the provider
+ * started in its name, and archives of earlier harvests are kept. A
+ * harvest that saves no records writes no delta.
+ * <br><br>
+ *
+ * Besides the records, the archive holds an entry index.txt, listing for
+ * each record its identifier, the name of its entry and its size,
+ * separated by tabs.
+ */
+public class RecordArchive {
+
+    private static final Logger logger = LogManager.getLogger(RecordArchive.class);
+
+    /** Name of the index entry */
+    public static final String INDEX = "index.txt";
+
+    /** Suffix of archives being written */
+    private static final String PART = ".part";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The kinds of archive.
+     */
+    public enum Format {
+        ZIP(".zip"), TAR_GZ(".tar.gz");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Get the extension of archive files.
+         *
+         * @return the extension, including the dot
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Get the format named in a configuration.
+         *
+         * @param name "zip" or "tar.gz"
+         * @return the format, or null if there is no such format
+         */
+        public static Format parse(String name) {
+            for (Format format : values()) {
+                if (format.extension.substring(1).equalsIgnoreCase(name))
+                    return format;
+            }
+            return null;
+        }
+    }
+
+    /** The archives being written, by provider */
+    private static final Map<Provider, Run> runs = new ConcurrentHashMap<>();
+
+    /**
+     * The archives of the harvest of a provider.
+     */
+    private static final class Run {
+        /** When the harvest started archiving, naming its deltas */
+        final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+        /** The archives, by the location of a full archive; guarded by this */
+        final Map<Path, RecordArchive> started = new HashMap<>();
+    }
+
+    private final Path target;
+
+    private final Path part;
+
+    private final ZipOutputStream zip;
+
+    private final TarWriter tar;
+
+    /** The identifier and size of the records archived, by entry name */
+    private final Map<String, String> index = new LinkedHashMap<>();
+
+    private RecordArchive(Path target, Format format) throws IOException {
+        this.target = target;
+        this.part = target.resolveSibling(target.getFileName() + PART);
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), BUFFER_SIZE);
+        if (format == Format.ZIP) {
+            zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+            tar = null;
+        } else {
+            zip = null;
+            tar = new TarWriter(new GZIPOutputStream(out, BUFFER_SIZE));
+        }
+        logger.debug("writing archive " + part);
+    }
+
+    /**
+     * Get the archive a provider's records are written to, starting it for
+     * the first record. In an incremental harvest, the archive is a delta
+     * next to the target.
+     *
+     * @param provider the provider
+     * @param target the location of the finished archive
+     * @param format the kind of archive
+     * @return the archive
+     * @throws IOException the archive can't be created
+     */
+    public static RecordArchive get(Provider provider, Path target, Format format) throws IOException {
+        Run run = runs.computeIfAbsent(provider, p -> new Run());
+        synchronized (run) {
+            RecordArchive archive = run.started.get(target);
+            if (archive == null) {
+                Path file = provider.getIncremental() ? delta(target, format, run.stamp) : target;
+                archive = new RecordArchive(file, format);
+                run.started.put(target, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Choose the name of a delta archive, which no earlier archive has.
+     *
+     * @param target the location of a full archive
+     * @param format the kind of archive
+     * @param stamp the time the harvest started
+     * @return the location of the delta
+     */
+    private static Path delta(Path target, Format format, String stamp) {
+        String name = target.getFileName().toString();
+        String base = name.substring(0, name.length() - format.getExtension().length()) + "-" + stamp;
+        Path file = target.resolveSibling(base + format.getExtension());
+        for (int i = 1; Files.exists(file); i++)
+            file = target.resolveSibling(base + "-" + i + format.getExtension());
+        return file;
+    }
+
+    /**
+     * Finish the archives of a provider. Called when the harvest of the
+     * provider is done.
+     *
+     * @param provider the provider
+     * @param success whether the harvest succeeded; if not, the archives
+     * are removed
+     */
+    public static void finish(Provider provider, boolean success) {
+        Run run = runs.remove(provider);
+        if (run == null)
+            return;
+        synchronized (run) {
+            for (RecordArchive archive : run.started.values())
+                archive.close(success);
+        }
+    }
+
+    /**
+     * Add a record to the archive. A record saved more than once in a
+     * harvest is archived once.
+     *
+     * @param name the name of the entry, the name of the file the record
+     * is saved in
+     * @param identifier the identifier of the record
+     * @param bytes the record
+     * @throws IOException the record can't be written
+     */
+    public synchronized void add(String name, String identifier, byte[] bytes) throws IOException {
+        if (index.containsKey(name)) {
+            logger.debug("record " + identifier + " is already in archive " + target);
+            return;
+        }
+        write(name, bytes);
+        index.put(name, identifier + "\t" + name + "\t" + bytes.length);
+    }
+
+    private void write(String name, byte[] bytes) throws IOException {
+        if (zip != null) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(bytes);
+            zip.closeEntry();
+        } else {
+            tar.write(name, bytes);
+        }
+    }
+
+    /**
+     * Write the index and close the archive, moving it into place or
+     * removing it.
+     */
+    private synchronized void close(boolean keep) {
+        try {
+            if (keep) {
+                StringBuilder sb = new StringBuilder();
+                for (String line : index.values())
+                    sb.append(line).append('\n');
+                write(INDEX, sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (zip != null)
+                zip.close();
+            else
+                tar.close();
+            if (keep) {
+                try {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                logger.info("Archived " + index.size() + " record(s) in " + target);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot finish archive " + target, e);
+        } finally {
+            try {
+                Files.deleteIfExists(part);
+            } catch (IOException e) {
+                logger.error("Cannot remove " + part, e);
+            }
+        }
+    }
+
+    /**
+     * Writes entries in the ustar format, with GNU long name entries for
+     * names that don't fit in a header.
+     */
+    private static final class TarWriter {
+        private static final int BLOCK = 512;
+
+        private final OutputStream out;
+
+        private final long mtime = System.currentTimeMillis() / 1000;
+
+        TarWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(String name, byte[] bytes) throws IOException {
+            byte[] n = name.getBytes(StandardCharsets.UTF_8);
+            if (n.length > 100) {
+                byte[] link = Arrays.copyOf(n, n.length + 1);
+                header("././@LongLink".getBytes(StandardCharsets.US_ASCII), link.length, 'L');
+                data(link);
+                n = Arrays.copyOf(n, 100);
+            }
+            header(n, bytes.length, '0');
+            data(bytes);
+        }
+
+        private void header(byte[] name, long size, char type) throws IOException {
+            byte[] header = new byte[BLOCK];
+            System.arraycopy(name, 0, header, 0, name.length);
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, mtime);
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            // the checksum is computed with its own field taken as spaces
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            long sum = 0;
+            for (byte b : header)
+                sum += b & 0xff;
+            octal(header, 148, 7, sum);
+            out.write(header);
+        }
+
+        private void data(byte[] bytes) throws IOException {
+            out.write(bytes);
+            int pad = (BLOCK - bytes.length % BLOCK) % BLOCK;
+            out.write(new byte[pad]);
+        }
+
+        /** Put a number in a field as octal digits followed by a NUL */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            while (digits.length() < length - 1)
+                digits = "0" + digits;
+            System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+            header[offset + length - 1] = 0;
+        }
+
+        void close() throws IOException {
+            out.write(new byte[2 * BLOCK]);
+            out.close();
+        }
+    }
+}
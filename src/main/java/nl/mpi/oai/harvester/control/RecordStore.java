@@ -0,0 +1,625 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A directory keeping records in a few large segment files, instead of a
+ * file per record. Records are appended to the current segment; an index
+ * in memory maps the key of each record to the segment, offset and length
+ * of its latest version. Deleting a record appends a tombstone.
+ * <br><br>
+ *
+ * When a segment reaches its maximum size a new one is started. Segments
+ * holding mostly replaced or deleted records are compacted in the
+ * background: their live records are appended to the current segment and
+ * the old segment file is removed.
+ * <br><br>
+ *
+ * The index is rebuilt from the segments when a store is opened. Each
+ * entry carries a checksum, so a record only partly written when the
+ * harvester stopped is dropped from the end of the last segment.
+ * <br><br>
+ *
+ * An entry is an int key length, an int value length (-1 for a
+ * tombstone), an int CRC32 of key and value, the UTF-8 key and the value.
+ * Keys are the file names records would have been saved under.
+ */
+public class RecordStore implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(RecordStore.class);
+
+    /** Default maximum size of a segment in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    /** Suffix of segment files */
+    private static final String SEGMENT = ".seg";
+
+    /** Size of the header of an entry */
+    private static final int HEADER = 12;
+
+    /** Value length marking a tombstone */
+    private static final int TOMBSTONE = -1;
+
+    /** The open stores, by directory */
+    private static final Map<Path, RecordStore> stores = new ConcurrentHashMap<>();
+
+    /** Compacts segments of all stores, one at a time */
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "record-store-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path dir;
+
+    private final long segmentSize;
+
+    /** Location of the latest version of each record, by key */
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    /** The segments, by number */
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /** The segment records are appended to; guarded by this */
+    private volatile Segment active;
+
+    /** Whether a compaction is waiting to run */
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    /** Held while compacting, so segments are compacted one at a time */
+    private final Object compaction = new Object();
+
+    /** Whether the store is closed; guarded by compaction */
+    private boolean closed = false;
+
+    private RecordStore(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Util.ensureDirExists(dir);
+
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring " + file + " in record store " + dir);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            Segment segment = new Segment(numbers.get(i));
+            segments.put(segment.number, segment);
+            // only the last segment can end with a partial entry
+            scan(segment, i == numbers.size() - 1);
+        }
+        if (segments.isEmpty())
+            active = addSegment(1);
+        else
+            active = segments.lastEntry().getValue();
+        logger.info("Opened record store " + dir + " with " + index.size()
+                + " record(s) in " + segments.size() + " segment(s)");
+        scheduleCompaction();
+    }
+
+    /**
+     * Open the store kept in a directory, creating it if there is none.
+     * A store is opened once, and shared by everyone opening it; the
+     * first to open it determines its maximum segment size.
+     *
+     * @param dir the directory
+     * @param segmentSize maximum size of a segment in bytes
+     * @return the store
+     * @throws IOException the store can't be opened
+     */
+    public static RecordStore open(Path dir, long segmentSize) throws IOException {
+        Path key = dir.toAbsolutePath();
+        RecordStore store = stores.get(key);
+        if (store != null)
+            return store;
+        synchronized (stores) {
+            store = stores.get(key);
+            if (store == null) {
+                store = new RecordStore(key, segmentSize);
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Get the store kept in a directory, if there is one.
+     *
+     * @param dir the directory
+     * @return the store, or null if the directory holds no store
+     * @throws IOException the store can't be opened
+     */
+    public static RecordStore find(Path dir) throws IOException {
+        RecordStore store = stores.get(dir.toAbsolutePath());
+        if (store != null)
+            return store;
+        if (!Files.isDirectory(dir))
+            return null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT)) {
+            if (!files.iterator().hasNext())
+                return null;
+        }
+        return open(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Close all open stores, making sure the records written reach the
+     * disk. Called by the harvest engine when no engine has workers
+     * running; a store opened again afterwards is read from disk anew.
+     */
+    public static void closeAll() {
+        for (RecordStore store : new ArrayList<>(stores.values())) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.error("Cannot close record store " + store.dir, e);
+            }
+        }
+    }
+
+    /**
+     * Get a record.
+     *
+     * @param key the key of the record
+     * @return the record, or null if there is no such record
+     * @throws IOException the record can't be read
+     */
+    public byte[] get(String key) throws IOException {
+        for (;;) {
+            Location location = index.get(key);
+            if (location == null)
+                return null;
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                byte[] value = segment.read(location.offset + HEADER + location.keyLength, location.length);
+                if (value != null)
+                    return value;
+            }
+            // the segment was compacted meanwhile, and the record moved
+            if (index.get(key) == location)
+                throw new IOException("Record " + key + " lost from store " + dir);
+        }
+    }
+
+    /**
+     * Check if there is a record.
+     *
+     * @param key the key of the record
+     * @return true if there is a record with this key
+     */
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Get the keys of the records.
+     *
+     * @return the keys, a view that changes with the store
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Get the number of records.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Add a record, or replace the earlier version of it.
+     *
+     * @param key the key of the record
+     * @param value the record
+     * @throws IOException the record can't be written
+     */
+    public void put(String key, byte[] value) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            Location old = index.put(key, append(k, value));
+            if (old != null)
+                discard(old);
+        }
+    }
+
+    /**
+     * Delete a record.
+     *
+     * @param key the key of the record
+     * @return true if there was a record with this key
+     * @throws IOException the tombstone can't be written
+     */
+    public boolean delete(String key) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            Location old = index.remove(key);
+            if (old == null)
+                return false;
+            discard(old);
+            // a tombstone is only needed until the older versions are gone
+            discard(append(k, null));
+            return true;
+        }
+    }
+
+    /**
+     * Delete the records that are not in a collection.
+     *
+     * @param keep the keys of the records to keep
+     * @return the keys of the records deleted
+     * @throws IOException a tombstone can't be written
+     */
+    public List<String> retain(Collection<String> keep) throws IOException {
+        List<String> deleted = new ArrayList<>();
+        for (String key : new ArrayList<>(index.keySet())) {
+            if (!keep.contains(key) && delete(key))
+                deleted.add(key);
+        }
+        return deleted;
+    }
+
+    /**
+     * Write the records added so far to disk.
+     *
+     * @throws IOException the records can't be written
+     */
+    public synchronized void sync() throws IOException {
+        active.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (stores) {
+            stores.remove(dir);
+        }
+        // a compaction running finishes first, so no segment file is
+        // removed once the store can be opened again
+        synchronized (compaction) {
+            if (closed)
+                return;
+            closed = true;
+            synchronized (this) {
+                active.sync();
+                for (Segment segment : segments.values())
+                    segment.close();
+            }
+        }
+    }
+
+    /**
+     * Compact the segments holding mostly replaced or deleted records.
+     * The segment records are being added to is left alone.
+     */
+    public void compact() {
+        synchronized (compaction) {
+            if (closed)
+                return;
+            for (Segment segment : segments.values()) {
+                if (segment.number >= active.number)
+                    break;
+                if (segment.garbage.get() * 2 < segment.size)
+                    continue;
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    logger.error("Cannot compact segment " + segment.path, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "record store " + dir;
+    }
+
+    /**
+     * Append an entry to the active segment, starting a new segment if it
+     * would grow too large. The caller holds the lock on this store.
+     *
+     * @param key the key
+     * @param value the value, or null for a tombstone
+     * @return the location of the entry
+     */
+    private Location append(byte[] key, byte[] value) throws IOException {
+        int length = (value != null) ? value.length : TOMBSTONE;
+        long entry = HEADER + key.length + Math.max(length, 0);
+        if (active.size > 0 && active.size + entry > segmentSize) {
+            active.sync();
+            active = addSegment(active.number + 1);
+            scheduleCompaction();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (value != null)
+            crc.update(value);
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry);
+        buffer.putInt(key.length).putInt(length).putInt((int) crc.getValue()).put(key);
+        if (value != null)
+            buffer.put(value);
+
+        long offset = active.size;
+        active.write(buffer.array());
+        return new Location(active.number, offset, key.length, length);
+    }
+
+    /**
+     * Account for an entry that is no longer needed.
+     */
+    private void discard(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment == null)
+            return;
+        long garbage = segment.garbage.addAndGet(location.entryLength());
+        // while the store is being opened there is no active segment yet
+        if (active != null && segment != active && garbage * 2 >= segment.size)
+            scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                compact();
+            });
+        }
+    }
+
+    /**
+     * Move the live records of a segment to the active segment, and
+     * remove the segment.
+     */
+    private void compact(Segment segment) throws IOException {
+        // a tombstone is needed while an older segment may hold a
+        // version of the record
+        boolean oldest = segment.number == segments.firstKey();
+        int kept = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.path.toFile()), 64 * 1024))) {
+            long offset = 0;
+            while (offset < segment.size) {
+                int keyLength = in.readInt();
+                int length = in.readInt();
+                in.readInt();
+                byte[] k = new byte[keyLength];
+                in.readFully(k);
+                byte[] value = null;
+                if (length != TOMBSTONE) {
+                    value = new byte[length];
+                    in.readFully(value);
+                }
+                String key = new String(k, StandardCharsets.UTF_8);
+                synchronized (this) {
+                    Location location = index.get(key);
+                    if (value != null) {
+                        if (location != null && location.segment == segment.number && location.offset == offset) {
+                            index.put(key, append(k, value));
+                            kept++;
+                        }
+                    } else if (!oldest && location == null) {
+                        discard(append(k, null));
+                    }
+                }
+                offset += HEADER + keyLength + Math.max(length, 0);
+            }
+        }
+        synchronized (this) {
+            // the records moved must be on disk before the old copies go
+            active.sync();
+            segments.remove(segment.number);
+            segment.close();
+        }
+        Files.delete(segment.path);
+        logger.info("Compacted " + segment.path + ", kept " + kept + " record(s)");
+    }
+
+    /**
+     * Add the entries of a segment to the index.
+     *
+     * @param segment the segment
+     * @param last whether this is the last segment, which is checked for
+     * a partly written entry at its end
+     */
+    private void scan(Segment segment, boolean last) throws IOException {
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.path.toFile()), 64 * 1024))) {
+            while (offset < segment.size) {
+                int keyLength = in.readInt();
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (keyLength < 0 || length < TOMBSTONE
+                        || offset + HEADER + keyLength + Math.max(length, 0) > segment.size)
+                    throw new EOFException();
+                byte[] k = new byte[keyLength];
+                in.readFully(k);
+                CRC32 crc = new CRC32();
+                crc.update(k);
+                if (length > 0) {
+                    if (last) {
+                        byte[] value = new byte[length];
+                        in.readFully(value);
+                        crc.update(value);
+                    } else {
+                        // sealed segments were written to disk completely
+                        skip(in, length);
+                    }
+                }
+                if (last && (int) crc.getValue() != checksum)
+                    throw new EOFException();
+
+                String key = new String(k, StandardCharsets.UTF_8);
+                Location location = new Location(segment.number, offset, keyLength, length);
+                Location old = (length == TOMBSTONE) ? index.remove(key) : index.put(key, location);
+                if (old != null)
+                    discard(old);
+                if (length == TOMBSTONE)
+                    discard(location);
+                offset = location.offset + location.entryLength();
+            }
+        } catch (EOFException e) {
+            if (last) {
+                logger.warn("Dropping partly written record at " + offset + " of " + segment.path);
+                segment.truncate(offset);
+            } else {
+                logger.error("Segment " + segment.path + " is damaged at " + offset
+                        + ", records after it are lost");
+            }
+        }
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0)
+                throw new EOFException();
+            length -= skipped;
+        }
+    }
+
+    private Segment addSegment(int number) throws IOException {
+        Segment segment = new Segment(number);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Where the latest version of a record is.
+     */
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int keyLength;
+        final int length;
+
+        Location(int segment, long offset, int keyLength, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+        }
+
+        long entryLength() {
+            return HEADER + keyLength + Math.max(length, 0);
+        }
+    }
+
+    /**
+     * A segment file. It is accessed through a RandomAccessFile rather than
+     * a FileChannel: interrupting a thread using a channel closes the
+     * channel for every thread, and workers may be interrupted when a
+     * harvest is cancelled.
+     */
+    private final class Segment {
+        final int number;
+        final Path path;
+        final RandomAccessFile file;
+
+        /** Size of the segment; only changed while holding the store lock */
+        volatile long size;
+
+        /** Bytes of entries no longer needed */
+        final AtomicLong garbage = new AtomicLong();
+
+        /** Whether the segment was closed */
+        private boolean closed;
+
+        Segment(int number) throws IOException {
+            this.number = number;
+            this.path = dir.resolve(String.format("%06d", number) + SEGMENT);
+            this.file = new RandomAccessFile(path.toFile(), "rw");
+            this.size = file.length();
+        }
+
+        synchronized void write(byte[] entry) throws IOException {
+            file.seek(size);
+            file.write(entry);
+            size += entry.length;
+        }
+
+        /**
+         * Read bytes of the segment.
+         *
+         * @return the bytes, or null if the segment was closed
+         */
+        synchronized byte[] read(long offset, int length) throws IOException {
+            if (closed)
+                return null;
+            byte[] bytes = new byte[length];
+            file.seek(offset);
+            file.readFully(bytes);
+            return bytes;
+        }
+
+        synchronized void truncate(long length) throws IOException {
+            file.setLength(length);
+            size = length;
+        }
+
+        synchronized void sync() throws IOException {
+            if (!closed)
+                file.getFD().sync();
+        }
+
+        synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                file.close();
+            }
+        }
+    }
+}
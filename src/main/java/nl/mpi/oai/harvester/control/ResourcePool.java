@@ -20,6 +20,7 @@ package nl.mpi.oai.harvester.control;
 
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 
 /**
  * A very simple generic pool that manages access to resources that
@@ -54,15 +55,21 @@ public class ResourcePool<T> {
     }
 
     /**
-     * Obtain a resource from the pool.
+     * Obtain a resource from the pool. If the calling thread is interrupted
+     * while waiting, its interrupt status is restored and the wait is
+     * abandoned.
      *
      * @return A resource not held by any other caller
+     * @throws CancellationException when interrupted while waiting
      * */
     public synchronized T get() {
 	while (resources.isEmpty()) {
 	    try {
 		wait();
-	    } catch (InterruptedException ignored) { }
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new CancellationException("interrupted while waiting for a pooled resource");
+	    }
 	}
 	return resources.removeFirst();
     }
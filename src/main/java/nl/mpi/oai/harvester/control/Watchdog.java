@@ -0,0 +1,285 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the workers of an engine for stalls. Every worker records what
+ * it is doing: the phase (a request, the processing of records, an action)
+ * and a detail like the request URL or the record identifier. A worker
+ * that does not move on to another phase within the stall timeout is
+ * reported, and depending on the stall action also interrupted or
+ * abandoned.
+ * <br><br>
+ *
+ * Code running for a worker reports its phase through the static
+ * {@link #phase} method; outside of a watched worker this does nothing.
+ * A step that goes through the same phases again, like a request retried
+ * while the server is unavailable, reports them through {@link #continued}
+ * so it is still seen to stall.
+ */
+public class Watchdog {
+
+    private static final Logger logger = LogManager.getLogger(Watchdog.class);
+
+    /** What to do about a stalled worker */
+    public enum StallAction {
+        /** only report the stall */
+        LOG,
+        /** interrupt the worker, which normally ends the harvest */
+        INTERRUPT,
+        /** give up on the provider, also when the worker is blocked on a
+            connection or ignores interrupts */
+        ABANDON
+    }
+
+    /**
+     * The activity of a worker
+     */
+    public static class Activity {
+        private final Provider provider;
+        private final Thread thread;
+        /** The threads working for the worker: itself, and the threads
+            processing its records */
+        private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        private volatile String phase = "start";
+        private volatile String detail = null;
+        private volatile long since = System.currentTimeMillis();
+        private volatile HttpURLConnection connection = null;
+        private volatile boolean reported = false;
+
+        Activity(Provider provider, Thread thread) {
+            this.provider = provider;
+            this.thread = thread;
+            threads.add(thread);
+        }
+
+        @Override
+        public String toString() {
+            return phase + (detail != null ? " [" + detail + "]" : "");
+        }
+    }
+
+    /** Activity of the current thread, if it is watched */
+    private static final ThreadLocal<Activity> current = new ThreadLocal<>();
+
+    /** Stall timeout in milliseconds */
+    private final long timeout;
+
+    private final StallAction action;
+
+    /** The executor running the workers; watching ends when it terminates */
+    private final ExecutorService workers;
+
+    private final Map<Thread, Activity> activities = new ConcurrentHashMap<>();
+
+    /** Descriptions of the stalls seen */
+    private final List<String> stalls = new ArrayList<>();
+
+    /** Number of stalls handed out by takeStalls */
+    private int taken = 0;
+
+    private final ScheduledExecutorService checker;
+
+    /**
+     * Start watching.
+     *
+     * @param timeout seconds without progress before a worker is stalled
+     * @param action what to do about a stalled worker
+     * @param workers the executor running the workers watched
+     */
+    public Watchdog(int timeout, StallAction action, ExecutorService workers) {
+        this.timeout = timeout * 1000L;
+        this.action = action;
+        this.workers = workers;
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, timeout / 4);
+        checker.scheduleAtFixedRate(this::check, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Watch the current thread while it harvests a provider
+     *
+     * @param provider the provider harvested
+     */
+    public void register(Provider provider) {
+        Activity activity = new Activity(provider, Thread.currentThread());
+        activities.put(activity.thread, activity);
+        current.set(activity);
+    }
+
+    /**
+     * Stop watching the current thread
+     */
+    public void unregister() {
+        activities.remove(Thread.currentThread());
+        current.remove();
+    }
+
+    /**
+     * Get the activity of the current thread, to let other threads report
+     * on its behalf
+     *
+     * @return the activity, or null if the thread is not watched
+     */
+    public static Activity current() {
+        return current.get();
+    }
+
+    /**
+     * Report on behalf of the given activity from the current thread, or
+     * stop doing so.
+     *
+     * @param activity the activity, or null to stop
+     */
+    public static void attach(Activity activity) {
+        Activity attached = current.get();
+        if (attached != null && attached.thread != Thread.currentThread())
+            attached.threads.remove(Thread.currentThread());
+        if (activity == null) {
+            current.remove();
+        } else {
+            current.set(activity);
+            activity.threads.add(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Record that the current thread entered a new phase.
+     *
+     * @param phase what the worker is doing
+     * @param detail what it is doing it on, or null
+     */
+    public static void phase(String phase, String detail) {
+        Activity activity = current.get();
+        if (activity != null) {
+            activity.phase = phase;
+            activity.detail = detail;
+            activity.since = System.currentTimeMillis();
+            activity.reported = false;
+        }
+    }
+
+    /**
+     * Record that the current thread entered another phase of the step it
+     * is in. The time the step started is kept, so a step that keeps
+     * going through the same phases can still stall.
+     *
+     * @param phase what the worker is doing
+     * @param detail what it is doing it on, or null
+     */
+    public static void continued(String phase, String detail) {
+        Activity activity = current.get();
+        if (activity != null) {
+            activity.phase = phase;
+            activity.detail = detail;
+        }
+    }
+
+    /**
+     * Record the connection the current thread is reading from, so an
+     * abandoned worker blocked on it can be freed.
+     *
+     * @param connection the connection, or null when done with it
+     */
+    public static void connection(HttpURLConnection connection) {
+        Activity activity = current.get();
+        if (activity != null) {
+            activity.connection = connection;
+        }
+    }
+
+    /**
+     * Get the stalls seen so far
+     *
+     * @return a description of each stall
+     */
+    public synchronized List<String> getStalls() {
+        return new ArrayList<>(stalls);
+    }
+
+    /**
+     * Get the stalls seen since the previous call
+     *
+     * @return a description of each new stall
+     */
+    public synchronized List<String> takeStalls() {
+        List<String> fresh = new ArrayList<>(stalls.subList(taken, stalls.size()));
+        taken = stalls.size();
+        return fresh;
+    }
+
+    /**
+     * Stop watching
+     */
+    public void stop() {
+        checker.shutdownNow();
+    }
+
+    /**
+     * Look for stalled workers
+     */
+    private void check() {
+        if (workers.isTerminated()) {
+            stop();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Activity activity : activities.values()) {
+            long idle = now - activity.since;
+            if (idle < timeout || activity.reported)
+                continue;
+            // report each stall once; a worker may stall again in another phase
+            activity.reported = true;
+
+            String stall = activity.provider + " stalled for " + (idle / 1000)
+                    + " seconds in " + activity;
+            logger.warn(stall + (action != StallAction.LOG ? ", " + action.name().toLowerCase() : ""));
+            synchronized (this) {
+                stalls.add(stall);
+            }
+
+            if (action == StallAction.ABANDON) {
+                activity.provider.abandon();
+                HttpURLConnection connection = activity.connection;
+                if (connection != null)
+                    connection.disconnect();
+            }
+            if (action != StallAction.LOG) {
+                for (Thread thread : activity.threads)
+                    thread.interrupt();
+            }
+        }
+    }
+}
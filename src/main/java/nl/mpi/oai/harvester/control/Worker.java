@@ -37,6 +37,9 @@ import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents a single processing thread in the harvesting actions
@@ -70,6 +73,12 @@ class Worker implements Runnable {
     // kj: annotate
     Endpoint endpoint;
 
+    /** Notified of the records harvested and of the outcome */
+    private final HarvestListener listener;
+
+    /** Watches this worker for stalls, if not null */
+    private final Watchdog watchdog;
+
     /**
      * Associate a provider and action actionSequences with a scenario
      *
@@ -78,8 +87,25 @@ class Worker implements Runnable {
      */
     public Worker(Provider provider, Configuration config,
                   Cycle cycle) {
+        this(provider, config, cycle, HarvestListener.NONE, null);
+    }
+
+    /**
+     * Associate a provider and action actionSequences with a scenario
+     *
+     * @param provider OAI-PMH provider that this thread will harvest
+     * @param cycle the harvesting cycle
+     * @param listener notified of the records harvested and the outcome
+     * @param watchdog watches the worker for stalls, or null
+     */
+    public Worker(Provider provider, Configuration config,
+                  Cycle cycle, HarvestListener listener, Watchdog watchdog) {
 
         this.config = config;
+
+        this.listener = listener;
+
+        this.watchdog = watchdog;
         
 	this.provider = provider;
 
@@ -95,11 +121,19 @@ class Worker implements Runnable {
     @Override
     public void run() {
         Throwable t = null;
+        boolean success = false;
+        ForkJoinPool recordPool = null;
         try {
             logger.debug("Welcome to OAI Harvest Manager worker!");
  
             Thread.currentThread().setName(provider.getName().replaceAll("[^a-zA-Z0-9\\-\\(\\)]"," "));
    
+            // the deadline of the provider covers all requests made for it
+            provider.startDeadline();
+            if (watchdog != null)
+                watchdog.register(provider);
+
+            Watchdog.phase("identify", provider.getOaiUrl());
             provider.init();
             
             // setting specific log filename
@@ -134,7 +168,12 @@ class Worker implements Runnable {
 
             logger.info("Processing provider[" + provider + "] using scenario[" + scenarioName + "], incremental[" + provider.getIncremental() + "], timeout[" + provider.getTimeout() + "] and retry[count="+provider.getMaxRetryCount()+",delays="+Arrays.toString(provider.getRetryDelays())+"]");
 
-            FileSynchronization.addProviderStatistic(provider);
+            FileSynchronization.addProviderStatistic(provider, config.getWorkingDirectory());
+
+            // records of a single response may be processed in parallel
+            if (config.getRecordJobs() > 1) {
+                recordPool = new ForkJoinPool(config.getRecordJobs());
+            }
 
             for (final ActionSequence actionSequence : actionSequences) {
                 
@@ -146,6 +185,8 @@ class Worker implements Runnable {
 
                     // kj: annotate
                     Scenario scenario = new Scenario(provider, actionSequence);
+                    scenario.setListener(listener);
+                    scenario.setRecordPool(recordPool);
 
                     if (provider instanceof StaticProvider) {
                         logger.debug("static harvest["+provider+"]");
@@ -211,15 +252,19 @@ class Worker implements Runnable {
                                 done = scenario.listRecords(harvesting);
                                 logger.debug("list records -> done[" + done + "]");
                             }
-                            if(Main.config.isIncremental()) {
+                            if(config.isIncremental() && !provider.isCancelled()) {
                                 try
                                 {
                                     ResourcePool<Action> firstSaveAction = scenario.getFirstSaveAction();
                                     SaveAction saveAction = ((SaveAction)firstSaveAction.get());
                                     Path pathToDir = saveAction.chooseLocationDir(provider.getName());
+                                    OutputDirectory outDir = saveAction.getOutputDirectory();
                                     firstSaveAction.release(saveAction);
 
-                                    FileSynchronization.execute(provider, pathToDir);
+                                    Watchdog.phase("synchronize", pathToDir.toString());
+                                    FileSynchronization.execute(provider, pathToDir, outDir.isHashed());
+                                    // directories may have been removed
+                                    outDir.forget();
                                 }
                                 catch (IOException e)
                                 {
@@ -231,21 +276,44 @@ class Worker implements Runnable {
                 }
                 // break after an action sequence has completed successfully
                 if (done) break;
+                // or when there is no time left to try another one
+                if (provider.isCancelled()) break;
+            }
+
+            // records still being written count as part of the harvest
+            int failures = SaveAction.awaitWrites(provider);
+            if (failures > 0) {
+                logger.error(failures + " record(s) of " + provider + " could not be saved");
+                done = false;
             }
 
             // report back success or failure to the cycle
             endpoint.doneHarvesting(done);
+            success = done;
             if (config.isIncremental()) {
                 FileSynchronization.saveStatistics(provider);
                 endpoint.setIncrement(FileSynchronization.getProviderStatistic(provider).getHarvestedRecords());
             }
             logger.info("Processing finished for " + provider);
+        } catch (CancellationException e) {
+            // interrupted while waiting for a pooled action: record the
+            // attempt, but do not count it as a success
+            logger.warn("Processing cancelled for " + provider);
+            endpoint.doneHarvesting(false);
         } catch (Throwable e) {
             logger.error("Processing failed for " + provider+": "+e.getMessage(),e);
             t = e;
             throw e;
         } finally {
+            if (recordPool != null)
+                stop(recordPool);
+            if (watchdog != null)
+                watchdog.unregister();
             provider.close();
+            SaveAction.awaitWrites(provider);
+            RecordArchive.finish(provider, success);
+            FileSynchronization.removeProviderStatistic(provider);
+            listener.done(provider, success);
                 
             ThreadContext.clearAll();
             
@@ -259,4 +327,32 @@ class Worker implements Runnable {
         }
     }
 
+    /**
+     * Stop the threads processing the provider's records, and wait at most
+     * shutdown-grace seconds for the records still being processed, so
+     * none is saved after the writes are awaited and archives finished.
+     *
+     * @param recordPool the threads
+     */
+    private void stop(ForkJoinPool recordPool) {
+        recordPool.shutdownNow();
+        boolean interrupted = false;
+        int grace = config.getShutdownGrace();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(grace);
+        while (!recordPool.isTerminated()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                logger.error("Records of " + provider + " still being processed after "
+                        + grace + " seconds");
+                break;
+            }
+            try {
+                recordPool.awaitTermination(left, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
 }
@@ -245,4 +245,16 @@ public interface Endpoint {
      * @param increment the increment
      */
     void setIncrement (long increment);
+
+    /**
+     * <br> Get the harvest interval <br><br>
+     *
+     * When the harvester runs as a daemon, it harvests the endpoint again
+     * once this number of seconds has passed since the previous attempt.
+     * Like the block attribute, the interval is not governed by the cycle;
+     * it can be added to the overview by hand. <br><br>
+     *
+     * @return the interval in seconds, 0 if the endpoint does not define one
+     */
+    long getInterval ();
 }
@@ -363,4 +363,16 @@ class EndpointAdapter implements Endpoint {
         // update the overview
         xmlOverview.save();
     }
+
+    @Override
+    public long getInterval() {
+
+        // try to get attribute, use long reference type to check for null
+        Long interval = endpointType.getInterval();
+
+        /* Since the interval falls outside the governance of the cycle, do
+           not add a default value to the overview.
+         */
+        return (interval == null) ? 0 : interval;
+    }
 }
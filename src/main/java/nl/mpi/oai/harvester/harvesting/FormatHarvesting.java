@@ -101,6 +101,13 @@ public class FormatHarvesting extends AbstractHarvesting implements
         
         logger.debug("Requesting formats matching " + actions.getInputFormat());
 
+        // the formats might be known already, from preflight or a previous sequence
+        document = provider.getMetadataFormats();
+        if (document != null) {
+            logger.debug("Reusing the metadata formats of " + provider);
+            return true;
+        }
+
         int i = 0;
         for (;;) {
             try {
@@ -124,17 +131,14 @@ public class FormatHarvesting extends AbstractHarvesting implements
                             provider.getOaiUrl());
                     return false;
                 } else {
-                    int retryDelay = provider.getRetryDelay(i-1);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
+                    if (!provider.retryPause(provider.getRetryDelay(i-1))) {
+                        // cancelled or out of time, do not retry
+                        return false;
                     }
                 }
             } else {
-                // response contains a list of prefixes
+                // response contains a list of prefixes, keep it for reuse
+                provider.setMetadataFormats(document);
                 return true;
             }
         }
@@ -179,7 +183,7 @@ public class FormatHarvesting extends AbstractHarvesting implements
             /* Try to create a list of prefixes from the response. On failure,
                stop the work on the endpoint.
              */
-            nodeList = (NodeList) provider.xpath.evaluate(
+            nodeList = (NodeList) provider.getXPath().evaluate(
                     "//*[local-name() = 'metadataFormat']",
                     document.getDocument(), XPathConstants.NODESET);
         } catch (XPathExpressionException e) {
@@ -225,11 +229,11 @@ public class FormatHarvesting extends AbstractHarvesting implements
 
         String prefixValue, schemaValue, nsValue;
         try {
-            prefixValue = Util.getNodeText(provider.xpath,
+            prefixValue = Util.getNodeText(provider.getXPath(),
                     "./*[local-name() = 'metadataPrefix']/text()", node);
-            schemaValue = Util.getNodeText(provider.xpath,
+            schemaValue = Util.getNodeText(provider.getXPath(),
                     "./*[local-name() = 'schema']/text()", node);
-            nsValue = Util.getNodeText(provider.xpath,
+            nsValue = Util.getNodeText(provider.getXPath(),
                     "./*[local-name() = 'metadataNamespace']/text()", node);
         } catch (XPathExpressionException e) {
             // something went wrong parsing, try another prefix
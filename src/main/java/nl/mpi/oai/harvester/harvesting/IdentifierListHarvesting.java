@@ -24,6 +24,7 @@ import nl.mpi.oai.harvester.action.Action;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.action.SaveAction;
 import nl.mpi.oai.harvester.control.Configuration.CompareSkipVals;
+import nl.mpi.oai.harvester.control.MemoryGovernor;
 import nl.mpi.oai.harvester.control.ResourcePool;
 import nl.mpi.oai.harvester.cycle.Endpoint;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
@@ -80,6 +81,9 @@ public class IdentifierListHarvesting extends ListHarvesting
     
     private static final Logger logger = LogManager.getLogger(
             IdentifierListHarvesting.class);
+
+    /** Memory reserved for the record fetched last */
+    private long reserved = 0;
     
     /**
      * Associate endpoint and prefixes with the protocol
@@ -193,7 +197,7 @@ public class IdentifierListHarvesting extends ListHarvesting
             /* Try to add the targets in the response to the list. On 
                failure, stop the work on the current prefix.
              */
-            nodeList = (NodeList)provider.xpath.evaluate(
+            nodeList = (NodeList)provider.getXPath().evaluate(
                     "//*[(starts-with(local-name(),'identifier') or  starts-with(local-name(),'datestamp')) "
                             + "and parent::*[local-name()='header' "
                             + "and not(@status='deleted')]]/text()",
@@ -257,6 +261,11 @@ public class IdentifierListHarvesting extends ListHarvesting
             if (document == null) {
                 return null;
             } else {
+                /* Wait for memory before the record is turned into a
+                   tree; it is released once the record is processed.
+                 */
+                releaseRecord();
+                reserved = MemoryGovernor.getInstance().reserve(MemoryGovernor.estimate(document));
                 if (!p.processResponse(document)) {
                     return null;
                 } else {
@@ -266,6 +275,15 @@ public class IdentifierListHarvesting extends ListHarvesting
         }
     }
     
+    /**
+     * Release the memory reserved for the record fetched last, when it
+     * has been processed.
+     */
+    public void releaseRecord() {
+        MemoryGovernor.getInstance().release(reserved);
+        reserved = 0;
+    }
+
     public Object parseResponseIfNewer(Path pathToFile, Path pathToErrorFile) throws IOException {
 
         // check for protocol errors
@@ -329,6 +347,8 @@ public class IdentifierListHarvesting extends ListHarvesting
                         return "already exists";
                     } 
                     else if (compareMode == CompareSkipVals.COMPARE) {
+                        // the save action keeps the file if the content
+                        // did not change
                         logger.warn("Local newer than OAI for {}, will compare content", pair.identifier);
                         System.out.println("Local newer than OAI for "+pair.identifier+", will compare content");
                     }
@@ -341,12 +361,6 @@ public class IdentifierListHarvesting extends ListHarvesting
             throw ioe;
         }
 
-        byte[] existingBytes = null;
-
-        if (compareMode == CompareSkipVals.COMPARE && localNewer && Files.exists(pathToFile)) {
-            existingBytes = Files.readAllBytes(pathToFile);
-        }
-
         long start = System.nanoTime();
 
         Object result;
@@ -360,66 +374,9 @@ public class IdentifierListHarvesting extends ListHarvesting
                 String.format("%.2f", durationS) + " sec");
         }
 
-        // ---- POST-FETCH COMPARISON ----
-        if (compareMode == CompareSkipVals.COMPARE && localNewer && existingBytes != null && Files.exists(pathToFile)) {
-
-            byte[] newBytes = Files.readAllBytes(pathToFile);
-
-            if (contentEquals(existingBytes, newBytes)) {
-                // identical -> restore original (avoid unnecessary update)
-                Files.write(pathToFile, existingBytes);
-                logger.debug("No change detected for {}, keeping existing file", pair.identifier);
-            } else {
-                logger.warn("Content differs for {} even though local file was newer -> overwriting with harvested version",
-                        pair.identifier);
-                System.out.println("Content differs for "+pair.identifier+" even though local file was newer -> overwriting with harvested version");
-            }
-        }
-
         return result;
     }
     
-    private boolean contentEquals(byte[] a, byte[] b) {
-        if (java.util.Arrays.equals(a, b)) {
-            return true;
-        }
-
-        try {
-            return normalizeXml(a).equals(normalizeXml(b));
-        } catch (Exception e) {
-            logger.warn("XML normalization failed, falling back to byte compare", e);
-            return false;
-        }
-    }
-    
-    private String normalizeXml(byte[] data) throws Exception {
-
-        javax.xml.parsers.DocumentBuilderFactory dbf = javax.xml.parsers.DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        dbf.setIgnoringComments(true);
-        dbf.setCoalescing(true);
-
-        // IMPORTANT: ignore whitespace
-        dbf.setIgnoringElementContentWhitespace(true);
-
-        javax.xml.parsers.DocumentBuilder db = dbf.newDocumentBuilder();
-        org.w3c.dom.Document doc = db.parse(new java.io.ByteArrayInputStream(data));
-
-        doc.normalizeDocument();
-
-        javax.xml.transform.TransformerFactory tf = javax.xml.transform.TransformerFactory.newInstance();
-        javax.xml.transform.Transformer transformer = tf.newTransformer();
-
-        transformer.setOutputProperty(javax.xml.transform.OutputKeys.OMIT_XML_DECLARATION, "yes");
-        transformer.setOutputProperty(javax.xml.transform.OutputKeys.INDENT, "no");
-
-        java.io.StringWriter writer = new java.io.StringWriter();
-        transformer.transform(new javax.xml.transform.dom.DOMSource(doc),
-                              new javax.xml.transform.stream.StreamResult(writer));
-
-        return writer.toString().replaceAll(">\\s+<", "><").trim();
-    }
-    
     public Object parseResponseIfNewer(ActionSequence actions) throws IOException {
         
         // check for protocol errors
@@ -435,12 +392,12 @@ public class IdentifierListHarvesting extends ListHarvesting
         
         ResourcePool<Action> firstSaveAction = Scenario.getFirstSaveAction(actions);
         SaveAction saveAction = ((SaveAction)firstSaveAction.get());
-        Path pathToFile = saveAction.chooseLocation(this.provider.getName(), pair.identifier);
+        Path pathToFile = saveAction.locateFile(this.provider.getName(), pair.identifier);
         firstSaveAction.release(saveAction);
         
         ResourcePool<Action> validateOrRecoverAction = Scenario.getValidateOrRecoverAction(actions);
         ValidateOrRecoverAction recoverAction = ((ValidateOrRecoverAction)validateOrRecoverAction.get());
-        Path pathToErrorFile = recoverAction.chooseLocation(this.provider.getName(), pair.identifier);
+        Path pathToErrorFile = recoverAction.locateFile(this.provider.getName(), pair.identifier);
         validateOrRecoverAction.release(recoverAction);
         
         return (parseResponseIfNewer(pathToFile, pathToErrorFile));
@@ -20,7 +20,6 @@ package nl.mpi.oai.harvester.harvesting;
 
 import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.control.FileSynchronization;
-import nl.mpi.oai.harvester.control.Main;
 import nl.mpi.oai.harvester.cycle.Endpoint;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.utils.DocumentSource;
@@ -181,13 +180,7 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
         String untilDate = null;
 
 
-        boolean incremental = false;
-
-        if(Main.config != null){
-          incremental = Main.config.isIncremental();
-        }
-
-        if(incremental && endpoint != null) {
+        if(provider.getIncremental() && endpoint != null) {
             untilDate = formatter.format(new Date());
             if (provider.getOmitUntil() == true) {
                 untilDate = null;
@@ -225,14 +218,14 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
                                 null,
                                 prefixes.get(pIndex),
                                 provider.getTimeout(),
-                                provider.temp);
+                                provider.getTemp());
                     } else {
                         // request targets for a new set and prefix combination
                         document = verb5(provider.oaiUrl, fromDate, untilDate,
                                 provider.sets[sIndex].replace(" ",  "+"),
                                 (provider.getPrefixOverride() != null) ? provider.getPrefixOverride() : prefixes.get(pIndex),
                                 provider.getTimeout(),
-                                provider.temp);
+                                provider.getTemp());
                     }
                 }
 
@@ -285,13 +278,9 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
                     return false;
                 }
                 // retry the request once more
-                int retryDelay = provider.getRetryDelay(i-1);
-                if (retryDelay > 0) {
-                    try {
-                        Thread.sleep(retryDelay*1000);
-                    } catch (InterruptedException e) {
-                        logger.error(e.getMessage(), e);
-                    }
+                if (!provider.retryPause(provider.getRetryDelay(i-1))) {
+                    // cancelled or out of time, do not retry
+                    return false;
                 }
             }
         }
@@ -113,13 +113,9 @@ public final class RecordHarvesting extends AbstractHarvesting {
                     }
                     return false;
                 } else {
-                    int retryDelay = provider.getRetryDelay(i-1);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
+                    if (!provider.retryPause(provider.getRetryDelay(i-1))) {
+                        // cancelled or out of time, do not retry
+                        return false;
                     }
                 }
             } else {
@@ -108,7 +108,7 @@ public class RecordListHarvesting extends ListHarvesting
             NoSuchFieldException,
             XMLStreamException {
 
-        document = oaiFactory.createListRecords(metadataPrefix, resumptionToken, timeout, provider.temp);
+        document = oaiFactory.createListRecords(metadataPrefix, resumptionToken, timeout, provider.getTemp());
 
         // implement by returning ListRecords with the two parameters supplied
         return document;
@@ -196,7 +196,7 @@ public class RecordListHarvesting extends ListHarvesting
             /* Try to create a list of records from the response. On failure,
                stop the work on the current prefix.
              */
-            nodeList = (NodeList)provider.xpath.evaluate(
+            nodeList = (NodeList)provider.getXPath().evaluate(
                     "//*[parent::*[local-name()='ListRecords']]",
                     document.getDocument(), XPathConstants.NODESET);
             logger.debug("found ["+nodeList.getLength()+"] records in the ListRecords response");
@@ -239,14 +239,14 @@ public class RecordListHarvesting extends ListHarvesting
         logger.debug("process ["+nIndex+"/"+nodeList.getLength()+"] record from the ListRecords response");
         Node node = nodeList.item(nIndex).cloneNode(true);
         nIndex++;
-        Document doc = provider.db.newDocument();
+        Document doc = provider.getDocumentBuilder().newDocument();
         Node copy = doc.importNode(node, true);
         doc.appendChild(copy);
 
         // evaluate the document, find the identifier
         Node idNode;
         try {
-            idNode = (Node) provider.xpath.evaluate("//*[starts-with(local-name(),"
+            idNode = (Node) provider.getXPath().evaluate("//*[starts-with(local-name(),"
                     + "'identifier') and parent::*[local-name()='header'"
                     + "and not(@status='deleted')]]/text()",
                     doc, XPathConstants.NODE);
@@ -267,7 +267,7 @@ public class RecordListHarvesting extends ListHarvesting
         // evaluate the document, find the Metadata record
         Node dataNode;
         try {
-            dataNode = (Node) provider.xpath.evaluate("//*[local-name()="
+            dataNode = (Node) provider.getXPath().evaluate("//*[local-name()="
                     + "'metadata'"
                     + "and parent::*[local-name()='record']]/*[1]",
                     doc, XPathConstants.NODE);
@@ -285,7 +285,7 @@ public class RecordListHarvesting extends ListHarvesting
         
         // create a document to store the metadata in
         dataNode = dataNode.cloneNode(true);
-        doc = provider.db.newDocument();
+        doc = provider.getDocumentBuilder().newDocument();
         copy = doc.importNode(dataNode, true);
         doc.appendChild(copy);
 
@@ -22,7 +22,10 @@ import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.action.Action;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.action.SaveAction;
+import nl.mpi.oai.harvester.control.HarvestListener;
+import nl.mpi.oai.harvester.control.MemoryGovernor;
 import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.control.Watchdog;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.utils.DocumentSource;
 import org.apache.logging.log4j.LogManager;
@@ -32,7 +35,9 @@ import edu.virginia.lib.oai.ValidateOrRecoverAction;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -51,6 +56,15 @@ public class Scenario {
     //
     ActionSequence actionSequence;
 
+    // notified of records and progress
+    private HarvestListener listener = HarvestListener.NONE;
+
+    // number of responses processed
+    private int responses = 0;
+
+    // pool processing the records of a response in parallel, if any
+    private ForkJoinPool recordPool = null;
+
     //
     private static final ReadWriteLock exclusiveLock = new ReentrantReadWriteLock(true);
 
@@ -59,6 +73,35 @@ public class Scenario {
         this.actionSequence = actionSequence;
     }
 
+    /**
+     * Set the listener to notify of the records processed and of the
+     * progress made
+     *
+     * @param listener the listener
+     */
+    public void setListener(HarvestListener listener) {
+        this.listener = (listener != null) ? listener : HarvestListener.NONE;
+    }
+
+    /**
+     * Set the pool in which the records of a ListRecords response are
+     * processed in parallel. Without a pool they are processed one after
+     * another.
+     *
+     * @param recordPool the pool, or null
+     */
+    public void setRecordPool(ForkJoinPool recordPool) {
+        this.recordPool = recordPool;
+    }
+
+    /**
+     * Tell the listener another response has been processed
+     */
+    private void progress() {
+        responses++;
+        listener.progress(provider, responses);
+    }
+
     /**
      * <br>Get the list of metadata prefixes supported by the endpoint<br><br>
      *
@@ -120,6 +163,7 @@ public class Scenario {
         System.out.println(harvesting.provider.getName() +" : Starting listIdentifiers in "+(harvesting.provider.incremental ? "incremental mode" : "non-incremental mode"));
         long listStart = System.nanoTime();
         for (;;) {
+            if (cancelled()) return false;
             try {
 
                 if (provider.isExclusive()) {
@@ -136,11 +180,22 @@ public class Scenario {
                     if (identifiers == null) {
                         return false;
                     } else {
-                        if (!harvesting.processResponse(identifiers)) {
+                        // the list is made from a tree as well
+                        Watchdog.phase("wait for memory", provider.getName());
+                        MemoryGovernor governor = MemoryGovernor.getInstance();
+                        long reserved = governor.reserve(MemoryGovernor.estimate(identifiers));
+                        boolean processed;
+                        try {
+                            processed = harvesting.processResponse(identifiers);
+                        } finally {
+                            governor.release(reserved);
+                        }
+                        if (!processed) {
                             // something went wrong, no identifiers for this endpoint
                             return false;
                         } else {
                             // received response
+                            progress();
 
                             if (!harvesting.requestMore()) {
                                 // finished requesting
@@ -179,7 +234,12 @@ public class Scenario {
         /* Iterate over the list of pairs, for each pair, get the record it
            identifies.
          */
+        boolean abandoned = false;
         while(!harvesting.fullyParsed() && !timedOutTooMuch) {
+            if (cancelled()) {
+                abandoned = true;
+                break;
+            }
             try {
                 if (provider.isExclusive()) {
                     exclusiveLock.writeLock().lock();
@@ -224,11 +284,15 @@ public class Scenario {
                 else {
                     // apply the action sequence to the record
                     actionSequence.runActions(record);
+                    listener.record(provider, record);
                     num_harvested++;
                     record.close();
+                    progress();
                 }
                 
             } finally {
+                // the record fetched is processed, or skipped
+                ((IdentifierListHarvesting) harvesting).releaseRecord();
                 if (provider.isExclusive()) {
                     exclusiveLock.writeLock().unlock();
                 } else {
@@ -249,7 +313,23 @@ public class Scenario {
             }
         }
 
-        return (num_errors == 0);
+        return (num_errors == 0 && !abandoned);
+    }
+
+    /**
+     * Check if the harvest should stop, because the worker was interrupted
+     * or because the provider ran out of time. Records already processed
+     * are kept; the scenario will report failure.
+     *
+     * @return true if the scenario should be abandoned
+     */
+    private boolean cancelled() {
+        if (provider.isCancelled()) {
+            logger.warn("Harvesting " + provider + " cancelled: "
+                    + (Thread.currentThread().isInterrupted() ? "interrupted" : "deadline expired"));
+            return true;
+        }
+        return false;
     }
 
     public ResourcePool<Action> getFirstSaveAction()
@@ -309,6 +389,7 @@ public class Scenario {
         Integer n = 0;
 
         do {
+            if (cancelled()) return false;
             try {
                 
                 if (provider.isExclusive()) {
@@ -327,18 +408,33 @@ public class Scenario {
                         String id;
                         id = String.format("%07d", n);
 
-                        Metadata metadata = harvesting.getMetadataFactory().create(
-                                provider.getName() + "-" + id,
-                                OAIHelper.getPrefix(records),
-                                records, this.provider, true, true);
-
-                        n++;
-
-                        // apply the action sequence to the records
-                        actionSequence.runActions(metadata);
-                        
-                        // cleanup
-                        metadata.close();
+                        /* Wait for memory before the response is turned
+                           into a tree; the next request is only made after
+                           this one has been processed.
+                         */
+                        Watchdog.phase("wait for memory", provider.getName() + "-" + id);
+                        MemoryGovernor governor = MemoryGovernor.getInstance();
+                        long reserved = governor.reserve(MemoryGovernor.estimate(records));
+                        try {
+                            Metadata metadata = harvesting.getMetadataFactory().create(
+                                    provider.getName() + "-" + id,
+                                    OAIHelper.getPrefix(records),
+                                    records, this.provider, true, true);
+
+                            n++;
+
+                            // apply the action sequence to the records
+                            actionSequence.runActions(
+                                    new ArrayList<>(Collections.singletonList(metadata)),
+                                    recordPool);
+                            listener.record(provider, metadata);
+                            progress();
+
+                            // cleanup
+                            metadata.close();
+                        } finally {
+                            governor.release(reserved);
+                        }
                     }
                 }
                 /* Check if in principle another response would be
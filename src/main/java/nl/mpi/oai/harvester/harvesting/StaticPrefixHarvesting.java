@@ -128,7 +128,7 @@ public final class StaticPrefixHarvesting extends FormatHarvesting
         StaticProvider p = (StaticProvider) provider;
 
         try {
-            nodeList = (NodeList) provider.xpath.evaluate(
+            nodeList = (NodeList) provider.getXPath().evaluate(
                     "//*[local-name() = 'metadataFormat']",
                     response.getDocument(),
                     XPathConstants.NODESET);
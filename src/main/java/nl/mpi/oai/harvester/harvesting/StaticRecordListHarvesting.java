@@ -150,7 +150,7 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
         // parse the content
         Node node;
         try {
-            node = (Node) provider.xpath.evaluate(expression,
+            node = (Node) provider.getXPath().evaluate(expression,
                     document.getDocument(), XPathConstants.NODE);
         } catch (XPathExpressionException e) {
             // something went wrong, let the scenario try another provider
@@ -161,7 +161,7 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
         }
 
         // node contains subtree with records, turn the tree into a document
-        Document doc = provider.db.newDocument();
+        Document doc = provider.getDocumentBuilder().newDocument();
         doc.appendChild(doc.importNode(node, true));
         document.setDocument(doc);
 
@@ -170,7 +170,7 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
                 "and parent::*[local-name()='header' " +
                 "and not(@status='deleted')]]/text()";
         try{
-            nodeList = (NodeList)provider.xpath.evaluate(expression,
+            nodeList = (NodeList)provider.getXPath().evaluate(expression,
                     document.getDocument(), XPathConstants.NODESET);
         } catch (XPathExpressionException e) {
             // something went wrong, let the scenario try another provider
@@ -224,7 +224,7 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
 
         try {
             document = response.getDocument();
-            node = (Node) provider.xpath.evaluate(expression,
+            node = (Node) provider.getXPath().evaluate(expression,
                     document, XPathConstants.NODE);
         } catch (ParserConfigurationException | SAXException | IOException | XPathExpressionException e) {
             // something went wrong, let the scenario try another record
@@ -236,7 +236,7 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
 
         // found the record, create a document to store it in
 
-        document = provider.db.newDocument();
+        document = provider.getDocumentBuilder().newDocument();
         // copy the subtree beginning with the node, make a deep copy
         Node copy = document.importNode(node, true);
         // add the node to the document
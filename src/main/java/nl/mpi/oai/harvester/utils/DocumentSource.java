@@ -87,6 +87,23 @@ public class DocumentSource {
         return doc;
     }
     
+    /**
+     * Get the size of the stream, which is the response as received.
+     *
+     * @return the number of bytes, or -1 if there is no stream
+     */
+    public long getSize() {
+        if (str==null)
+            return -1;
+        try {
+            str.reset();
+            return str.available();
+        } catch (IOException ex) {
+            logger.debug("failed to get the size of DocumentSource["+id+"]");
+            return -1;
+        }
+    }
+    
     public InputSource getSource() {
         return new InputSource(getStream());
     }
@@ -0,0 +1,241 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fingerprints of the content of XML documents. Two documents have the
+ * same fingerprint if they have the same elements, attributes and text,
+ * regardless of namespace prefixes, the order of attributes, comments,
+ * processing instructions and whitespace. A fingerprint is computed while
+ * the document is parsed, without building a tree.
+ * <br><br>
+ *
+ * The fingerprint of a saved record is kept in an extended attribute of
+ * its file. Where the file system doesn't support those, the fingerprint
+ * of an existing file is computed from the file when it is needed.
+ */
+public final class Fingerprint {
+
+    private static final Logger logger = LogManager.getLogger(Fingerprint.class);
+
+    /** Name of the extended attribute holding the fingerprint */
+    private static final String ATTRIBUTE = "oai-harvest.fingerprint";
+
+    private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+
+    private static final ThreadLocal<Transformer> serializer = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("cannot create a serializer", e);
+        }
+    });
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Compute the fingerprint of a document.
+     *
+     * @param in the document, which is not closed
+     * @return the fingerprint
+     * @throws XMLStreamException the document is not well-formed
+     */
+    public static String of(InputStream in) throws XMLStreamException {
+        MessageDigest digest = digest();
+        StringBuilder text = new StringBuilder();
+        XMLStreamReader reader = inputFactory.get().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        text(digest, text);
+                        update(digest, '<', reader.getNamespaceURI(), reader.getLocalName());
+                        List<String> attributes = new ArrayList<>(reader.getAttributeCount());
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String ns = reader.getAttributeNamespace(i);
+                            attributes.add((ns != null ? "{" + ns + "}" : "")
+                                    + reader.getAttributeLocalName(i) + "=" + reader.getAttributeValue(i));
+                        }
+                        Collections.sort(attributes);
+                        for (String attribute : attributes)
+                            update(digest, '@', attribute);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        text(digest, text);
+                        update(digest, '>');
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        text.append(reader.getText());
+                        break;
+                    default:
+                        // comments, processing instructions and the like
+                        // don't count
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Compute the fingerprint of a document held as a tree.
+     *
+     * @param doc the document
+     * @return the fingerprint
+     * @throws TransformerException the document can't be serialized
+     * @throws XMLStreamException the document is not well-formed
+     */
+    public static String of(Document doc) throws TransformerException, XMLStreamException {
+        // trees may be built without namespace support, so the fingerprint
+        // is computed from the serialized form, like that of a file
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.get().transform(new DOMSource(doc), new StreamResult(out));
+        return of(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * Compute the fingerprint of a file.
+     *
+     * @param file the file
+     * @return the fingerprint
+     * @throws IOException the file can't be read
+     * @throws XMLStreamException the file is not well-formed
+     */
+    public static String of(Path file) throws IOException, XMLStreamException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return of(in);
+        }
+    }
+
+    /**
+     * Get the fingerprint of a saved record, computing and storing it if
+     * it wasn't stored.
+     *
+     * @param file the file holding the record
+     * @return the fingerprint, or null if there is no such file or its
+     * fingerprint can't be determined
+     */
+    public static String stored(Path file) {
+        if (!Files.exists(file))
+            return null;
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view != null) {
+            try {
+                ByteBuffer value = ByteBuffer.allocate(view.size(ATTRIBUTE));
+                view.read(ATTRIBUTE, value);
+                value.flip();
+                return StandardCharsets.US_ASCII.decode(value).toString();
+            } catch (IOException | UnsupportedOperationException e) {
+                // not stored yet, or not supported
+            }
+        }
+        try {
+            String fingerprint = of(file);
+            store(file, fingerprint);
+            return fingerprint;
+        } catch (IOException | XMLStreamException e) {
+            logger.debug("Cannot compute the fingerprint of " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the fingerprint of a saved record with its file.
+     *
+     * @param file the file holding the record
+     * @param fingerprint the fingerprint of the record
+     */
+    public static void store(Path file, String fingerprint) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null)
+            return;
+        try {
+            view.write(ATTRIBUTE, StandardCharsets.US_ASCII.encode(fingerprint));
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Cannot store the fingerprint of " + file, e);
+        }
+    }
+
+    /** Add the text seen since the last tag, with whitespace collapsed */
+    private static void text(MessageDigest digest, StringBuilder text) {
+        String normalized = text.toString().replaceAll("\\s+", " ").trim();
+        text.setLength(0);
+        if (!normalized.isEmpty())
+            update(digest, '"', normalized);
+    }
+
+    private static void update(MessageDigest digest, char kind, String... parts) {
+        digest.update((byte) kind);
+        for (String part : parts) {
+            if (part != null)
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -18,6 +18,16 @@ public class MarkableFileInputStream extends FilterInputStream {
         mark(0);
     }
 
+    /**
+     * Get the channel of the underlying file, for copying it without going
+     * through this stream.
+     *
+     * @return the channel
+     */
+    public FileChannel getChannel() {
+        return myFileChannel;
+    }
+
     @Override
     public boolean markSupported() {
         return true;
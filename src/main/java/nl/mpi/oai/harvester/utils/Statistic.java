@@ -15,18 +15,18 @@ public class Statistic {
         harvestStartTime = System.currentTimeMillis();
     }
 
-    public void incRecordCount(){
+    public synchronized void incRecordCount(){
         records++;
     }
 
-    public void incRequestCount(){
+    public synchronized void incRequestCount(){
         requests++;
     }
 
-    public long getHarvestedRecords() {
+    public synchronized long getHarvestedRecords() {
         return  records;
     }
-    public long getRequests() {
+    public synchronized long getRequests() {
         return requests;
     }
     public long getHarvestTime() {
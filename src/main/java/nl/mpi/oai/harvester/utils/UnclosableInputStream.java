@@ -0,0 +1,36 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * A stream that ignores close, for handing the stream of a record to a
+ * parser that closes what it reads. The record can then still read its
+ * stream again.
+ */
+public class UnclosableInputStream extends FilterInputStream {
+
+    public UnclosableInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public void close() {
+        // the owner of the stream closes it
+    }
+}
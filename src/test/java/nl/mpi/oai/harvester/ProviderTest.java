@@ -24,8 +24,12 @@ import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import com.github.tomakehurst.wiremock.junit.WireMockClassRule;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.Assert.*;
 import org.w3c.dom.Document;
 
@@ -37,6 +41,90 @@ import org.w3c.dom.Document;
  * @author Lari Lampen (MPI-PL)
  */
 public class ProviderTest {
+    @ClassRule
+    public static WireMockClassRule wireMockRule = new WireMockClassRule(8091);
+
+    @Rule
+    public WireMockClassRule wireMockInstanceRule = wireMockRule;
+
+    private static final String OAI = "http://localhost:8091/oai";
+
+    /**
+     * Wrap the content of an OAI-PMH response.
+     */
+    private static String response(String content) {
+	return "<?xml version='1.0' encoding='UTF-8'?>"
+	    + "<OAI-PMH xmlns='http://www.openarchives.org/OAI/2.0/'"
+	    + " xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'"
+	    + " xsi:schemaLocation='http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd'>"
+	    + "<responseDate>2014-04-01T09:21:52Z</responseDate>"
+	    + "<request verb='ListSets'>" + OAI + "</request>"
+	    + content + "</OAI-PMH>";
+    }
+
+    private static void listSets(String content) {
+	stubFor(get(urlEqualTo("/oai?verb=ListSets"))
+		.willReturn(aResponse().withBody(response(content))));
+    }
+
+    /**
+     * Test that configured sets the endpoint does not advertise are
+     * skipped.
+     */
+    @Test
+    public void testCheckSets() throws Exception {
+	listSets("<ListSets>"
+		+ "<set><setSpec>a</setSpec><setName>A</setName></set>"
+		+ "<set><setSpec>c</setSpec><setName>C</setName></set>"
+		+ "</ListSets>");
+	Provider instance = new Provider(OAI, 1, new int[]{0});
+	instance.setSets(new String[]{"a", "b"});
+	instance.checkSets();
+
+	assertArrayEquals(new String[]{"a"}, instance.getSets());
+    }
+
+    /**
+     * Test that an error reply to ListSets, or a list advertising none of
+     * the configured sets, keeps all of them.
+     */
+    @Test
+    public void testCheckSetsKept() throws Exception {
+	listSets("<error code='noSetHierarchy'>This repository does not support sets</error>");
+	Provider instance = new Provider(OAI, 1, new int[]{0});
+	instance.setSets(new String[]{"a", "b"});
+	instance.checkSets();
+	assertArrayEquals(new String[]{"a", "b"}, instance.getSets());
+
+	listSets("<ListSets><set><setSpec>c</setSpec><setName>C</setName></set></ListSets>");
+	instance.checkSets();
+	assertArrayEquals(new String[]{"a", "b"}, instance.getSets());
+    }
+
+    /**
+     * Test that the sets are checked as configured again, so a set the
+     * endpoint advertises later is harvested, and that only responses
+     * obtained in preflight expire.
+     */
+    @Test
+    public void testCheckSetsAgain() throws Exception {
+	listSets("<ListSets><set><setSpec>a</setSpec><setName>A</setName></set></ListSets>");
+	Provider instance = new Provider(OAI, 1, new int[]{0});
+	instance.setSets(new String[]{"a", "b"});
+	instance.checkSets();
+	assertArrayEquals(new String[]{"a"}, instance.getSets());
+
+	listSets("<ListSets>"
+		+ "<set><setSpec>a</setSpec><setName>A</setName></set>"
+		+ "<set><setSpec>b</setSpec><setName>B</setName></set>"
+		+ "</ListSets>");
+	instance.checkSets();
+	assertArrayEquals(new String[]{"a", "b"}, instance.getSets());
+
+	assertFalse(instance.isPreflighted());
+	assertFalse(instance.expirePreflight(0));
+    }
+
     /**
      * Test of parseProviderName method, of class Provider.
      */
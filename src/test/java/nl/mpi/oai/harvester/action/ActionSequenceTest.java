@@ -0,0 +1,203 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.Configuration.CompareSkipVals;
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for running transforms, and a final save, as one pipeline.
+ */
+public class ActionSequenceTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** Wraps the record in a step1 element */
+    private static final String STEP1 =
+            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:template match='/'><step1><xsl:copy-of select='*'/></step1></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    /** Wraps the output of STEP1 in a step2 element naming the record */
+    private static final String STEP2 =
+            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:param name='record_identifier'/>"
+            + "<xsl:template match='/'>"
+            + "<step2 id='{$record_identifier}'><xsl:copy-of select='step1'/></step2>"
+            + "</xsl:template>"
+            + "</xsl:stylesheet>";
+
+    private Provider provider;
+
+    private Path outDir;
+
+    private TransformAction step1;
+
+    private TransformAction step2;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new Provider("http://localhost/oai", 1, new int[]{0});
+        provider.setName("dummy");
+        outDir = folder.newFolder().toPath();
+
+        Path xsl = folder.newFolder().toPath();
+        Files.write(xsl.resolve("step1.xsl"), STEP1.getBytes(StandardCharsets.UTF_8));
+        Files.write(xsl.resolve("step2.xsl"), STEP2.getBytes(StandardCharsets.UTF_8));
+        Element conf = parse("<config/>").getDocumentElement();
+        step1 = new TransformAction(conf, xsl.resolve("step1.xsl").toString(), null, 0);
+        step2 = new TransformAction(conf, xsl.resolve("step2.xsl").toString(), null, 0);
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String record(String value) {
+        return "<r>" + value + "</r>";
+    }
+
+    private List<Metadata> records(String value) throws Exception {
+        return new ArrayList<>(Arrays.asList(
+                new Metadata("tree", "test", parse(record(value)), provider, false, false),
+                new Metadata("stream", "test", new ByteArrayInputStream(
+                        record(value).getBytes(StandardCharsets.UTF_8)), provider, false, false)));
+    }
+
+    private ActionSequence sequence(Action... actions) {
+        return new ActionSequence(new MetadataFormat("prefix", "test"), actions, 1);
+    }
+
+    /**
+     * Check that a document is the result of both stylesheets.
+     */
+    private static void checkResult(Document doc, String id, String value) {
+        Element root = doc.getDocumentElement();
+        assertEquals("step2", root.getTagName());
+        assertEquals(id, root.getAttribute("id"));
+        assertEquals(1, root.getElementsByTagName("step1").getLength());
+        assertEquals(value, root.getElementsByTagName("r").item(0).getTextContent());
+    }
+
+    private List<String> files() throws Exception {
+        try (Stream<Path> files = Files.list(outDir)) {
+            return files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Document saved(String name) throws Exception {
+        return parse(new String(Files.readAllBytes(outDir.resolve(name)), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that the output of the last stylesheet is written straight to
+     * the file of the save action.
+     */
+    @Test
+    public void testChainSave() throws Exception {
+        SaveAction save = new SaveAction(new OutputDirectory(outDir), ".xml", false, false, null, null);
+        List<Metadata> records = records("1");
+        sequence(step1, step2, save).runActions(records);
+
+        assertEquals(Arrays.asList("stream.xml", "tree.xml"), files());
+        checkResult(saved("tree.xml"), "tree", "1");
+        checkResult(saved("stream.xml"), "stream", "1");
+        // the records themselves are left as they were
+        assertEquals("r", records.get(0).getDoc().getDocumentElement().getTagName());
+    }
+
+    /**
+     * Test that a save to an error directory is not fused into the chain,
+     * so its files are removed again as they always were.
+     */
+    @Test
+    public void testChainSaveError() throws Exception {
+        Path error = folder.newFolder("error").toPath();
+        SaveAction save = new SaveAction(new OutputDirectory(error), ".xml", false, false, null, null);
+        assertFalse(save.writesFiles());
+        sequence(step1, step2, save).runActions(records("1"));
+
+        try (Stream<Path> files = Files.list(error)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    /**
+     * Test that a chain not followed by a save leaves the result in the
+     * records.
+     */
+    @Test
+    public void testChain() throws Exception {
+        List<Metadata> records = records("2");
+        sequence(step1, step2).runActions(records);
+
+        checkResult(records.get(0).getDoc(), "tree", "2");
+        checkResult(records.get(1).getDoc(), "stream", "2");
+        assertEquals(0, files().size());
+    }
+
+    /**
+     * Test that in compare mode an unchanged result leaves the saved file
+     * alone, and a changed one replaces it.
+     */
+    @Test
+    public void testChainCompare() throws Exception {
+        provider.setCompareMode(CompareSkipVals.COMPARE);
+        SaveAction save = new SaveAction(new OutputDirectory(outDir), ".xml", false, false, null, null);
+        ActionSequence sequence = sequence(step1, step2, save);
+        sequence.runActions(records("1"));
+
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(outDir.resolve("tree.xml"), old);
+        Files.setLastModifiedTime(outDir.resolve("stream.xml"), old);
+
+        sequence.runActions(records("1"));
+        assertEquals(Arrays.asList("stream.xml", "tree.xml"), files());
+        assertEquals(old, Files.getLastModifiedTime(outDir.resolve("tree.xml")));
+        assertEquals(old, Files.getLastModifiedTime(outDir.resolve("stream.xml")));
+
+        sequence.runActions(records("3"));
+        assertEquals(Arrays.asList("stream.xml", "tree.xml"), files());
+        checkResult(saved("tree.xml"), "tree", "3");
+        checkResult(saved("stream.xml"), "stream", "3");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.validation.Schema;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for the schema cache.
+ */
+public class SchemaCacheTest {
+
+    static final String SCHEMA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'"
+            + " targetNamespace='urn:test' elementFormDefault='qualified'>"
+            + "<xs:element name='r'><xs:complexType><xs:sequence>"
+            + "<xs:element name='a' type='xs:int'/>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:schema>";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write the test schema.
+     *
+     * @return the schema location naming it
+     */
+    static String writeSchema(Path file) throws IOException {
+        Files.write(file, SCHEMA.getBytes(StandardCharsets.UTF_8));
+        return "urn:test " + file.toUri();
+    }
+
+    /**
+     * Test that a schema is compiled once.
+     */
+    @Test
+    public void testCacheHit() throws IOException {
+        String location = writeSchema(folder.newFolder().toPath().resolve("test.xsd"));
+        SchemaCache cache = new SchemaCache(null, SchemaCache.RETRY_DELAY);
+        Schema schema = cache.get(location);
+        assertNotNull(schema);
+        assertSame(schema, cache.get(location));
+    }
+
+    /**
+     * Test that a schema that could not be compiled is tried again after
+     * the delay, and not before.
+     */
+    @Test
+    public void testRetryAfterFailure() throws IOException {
+        Path file = folder.newFolder().toPath().resolve("test.xsd");
+        String location = "urn:test " + file.toUri();
+
+        SchemaCache waiting = new SchemaCache(null, SchemaCache.RETRY_DELAY);
+        SchemaCache retrying = new SchemaCache(null, 0);
+        assertNull(waiting.get(location));
+        assertNull(retrying.get(location));
+
+        writeSchema(file);
+        assertNull(waiting.get(location));
+        assertNotNull(retrying.get(location));
+    }
+
+    /**
+     * Test that schema documents kept in the cache directory are used
+     * when the original is gone.
+     */
+    @Test
+    public void testCacheDirectory() throws IOException {
+        Path file = folder.newFolder().toPath().resolve("test.xsd");
+        String location = writeSchema(file);
+        Path dir = folder.newFolder().toPath();
+
+        assertNotNull(new SchemaCache(dir, 0).get(location));
+        Files.delete(file);
+        assertNotNull(new SchemaCache(dir, 0).get(location));
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Test that a document that is not a schema, like an error page, is
+     * not kept in the cache directory.
+     */
+    @Test
+    public void testNotASchema() throws IOException {
+        Path file = folder.newFolder().toPath().resolve("test.xsd");
+        Files.write(file, "<html><body>Moved</body></html>".getBytes(StandardCharsets.UTF_8));
+        String location = "urn:test " + file.toUri();
+        Path dir = folder.newFolder().toPath();
+
+        SchemaCache cache = new SchemaCache(dir, 0);
+        assertNull(cache.get(location));
+        assertEquals(0, files(dir));
+
+        writeSchema(file);
+        assertNotNull(cache.get(location));
+        assertEquals(1, files(dir));
+    }
+
+    /**
+     * Test that the cached documents of a schema that fails to compile are
+     * removed, so they are downloaded again.
+     */
+    @Test
+    public void testBadCachedDocument() throws IOException {
+        Path file = folder.newFolder().toPath().resolve("test.xsd");
+        String location = writeSchema(file);
+        Path dir = folder.newFolder().toPath();
+        assertNotNull(new SchemaCache(dir, 0).get(location));
+
+        Path cached;
+        try (Stream<Path> files = Files.list(dir)) {
+            cached = files.findFirst().get();
+        }
+        Files.write(cached, "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element/></xs:schema>"
+                .getBytes(StandardCharsets.UTF_8));
+        SchemaCache cache = new SchemaCache(dir, 0);
+        assertNull(cache.get(location));
+        assertFalse(Files.exists(cached));
+
+        assertNotNull(cache.get(location));
+        assertTrue(Files.exists(cached));
+    }
+}
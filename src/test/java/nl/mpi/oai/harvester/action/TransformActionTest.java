@@ -0,0 +1,94 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for transform actions.
+ */
+public class TransformActionTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String IDENTITY =
+            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:template match='/'><xsl:copy-of select='*'/></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    private static void write(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that a stylesheet that failed to compile is tried again after
+     * the delay, and not before.
+     */
+    @Test
+    public void testStylesheetRetry() throws Exception {
+        Path xsl = folder.newFolder().toPath().resolve("t.xsl");
+        write(xsl, "<xsl:stylesheet");
+
+        TransformAction.Stylesheet waiting = new TransformAction.Stylesheet(xsl.toString(), 3600 * 1000);
+        assertNull(waiting.get());
+        TransformAction.Stylesheet retrying = new TransformAction.Stylesheet(xsl.toString(), 0);
+        assertNull(retrying.get());
+
+        write(xsl, IDENTITY);
+        assertNull(waiting.get());
+        assertNotNull(retrying.get());
+    }
+
+    private static String modules(Path xsl) throws Exception {
+        List<byte[]> parts = new ArrayList<>();
+        TransformAction.addModules(xsl.toUri(), new HashSet<>(), parts);
+        assertEquals(6, parts.size());
+        return TransformCache.hash(parts.toArray(new byte[0][]));
+    }
+
+    /**
+     * Test that the identity of a stylesheet covers the modules it
+     * includes and imports, once each.
+     */
+    @Test
+    public void testModules() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Files.createDirectory(dir.resolve("lib"));
+        Path main = dir.resolve("main.xsl");
+        write(main, "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:include href='lib/b.xsl'/></xsl:stylesheet>");
+        write(dir.resolve("lib/b.xsl"), "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:import href='../main.xsl'/><xsl:import href='c.xsl'/></xsl:stylesheet>");
+        write(dir.resolve("lib/c.xsl"), IDENTITY);
+
+        String before = modules(main);
+        assertEquals(before, modules(main));
+        write(dir.resolve("lib/c.xsl"), IDENTITY.replace("'*'", "'node()'"));
+        assertNotEquals(before, modules(main));
+    }
+}
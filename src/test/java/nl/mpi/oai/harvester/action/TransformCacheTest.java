@@ -0,0 +1,87 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for the transform result cache.
+ */
+public class TransformCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that a stored result is found again, and that the result used
+     * least recently is removed when the cache grows too large.
+     */
+    @Test
+    public void testStoreAndEvict() throws IOException, InterruptedException {
+        Path dir = folder.newFolder().toPath();
+        TransformCache cache = TransformCache.get(dir, 10, Long.MAX_VALUE / 2);
+        cache.awaitEviction();
+        String first = TransformCache.hash("first".getBytes(StandardCharsets.UTF_8));
+        String second = TransformCache.hash("second".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(first, second);
+
+        assertNull(cache.lookup(first));
+        cache.store(first, "<a/>".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("<a/>".getBytes(StandardCharsets.UTF_8), cache.lookup(first));
+
+        // make the first result look used an hour ago
+        FileTime before = FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000);
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+                Files.setLastModifiedTime(file, before);
+        }
+
+        // together larger than the cache; the first result goes
+        cache.store(second, "<b></b>".getBytes(StandardCharsets.UTF_8));
+        cache.awaitEviction();
+        assertNull(cache.lookup(first));
+        assertNotNull(cache.lookup(second));
+    }
+
+    /**
+     * Test that a full cache is cleaned up to 80% of its maximum size, so
+     * the next results stored don't clean it up again.
+     */
+    @Test
+    public void testEvictToLowWater() throws IOException, InterruptedException {
+        Path dir = folder.newFolder().toPath();
+        TransformCache cache = TransformCache.get(dir, 100, Long.MAX_VALUE / 2);
+        cache.awaitEviction();
+        for (int i = 0; i < 11; i++)
+            cache.store(TransformCache.hash(("r" + i).getBytes(StandardCharsets.UTF_8)), new byte[10]);
+        cache.awaitEviction();
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertEquals(8, files.filter(Files::isRegularFile).count());
+        }
+    }
+}
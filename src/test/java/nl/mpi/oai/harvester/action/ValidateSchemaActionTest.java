@@ -0,0 +1,93 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for validating records against their schema.
+ */
+public class ValidateSchemaActionTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static String record(String location, String value) {
+        return "<r xmlns='urn:test' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'"
+                + (location != null ? " xsi:schemaLocation='" + location + "'" : "")
+                + "><a>" + value + "</a></r>";
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Test that valid records and records naming no schema pass, and that
+     * invalid ones, held as a tree or as a stream, are saved to the error
+     * directory and removed, as is a stream that is not well-formed before
+     * its root element.
+     */
+    @Test
+    public void testValidate() throws Exception {
+        String location = SchemaCacheTest.writeSchema(folder.newFolder().toPath().resolve("test.xsd"));
+        Path errors = folder.newFolder().toPath();
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+
+        List<Metadata> records = new ArrayList<>(Arrays.asList(
+                new Metadata("valid", "test", parse(record(location, "1")), provider, false, false),
+                new Metadata("invalid", "test", parse(record(location, "x")), provider, false, false),
+                new Metadata("none", "test", parse(record(null, "x")), provider, false, false),
+                new Metadata("valid_stream", "test", new ByteArrayInputStream(
+                        record(location, "2").getBytes(StandardCharsets.UTF_8)), provider, false, false),
+                new Metadata("invalid_stream", "test", new ByteArrayInputStream(
+                        record(location, "y").getBytes(StandardCharsets.UTF_8)), provider, false, false),
+                new Metadata("malformed", "test", new ByteArrayInputStream(
+                        "<?xml version='1.0'?><<r/>".getBytes(StandardCharsets.UTF_8)), provider, false, false),
+                new Metadata("after", "test", parse(record(location, "3")), provider, false, false)));
+
+        ValidateSchemaAction action = new ValidateSchemaAction(new OutputDirectory(errors), ".xml", false, null);
+        assertTrue(action.perform(records));
+
+        assertEquals(Arrays.asList("valid", "none", "valid_stream", "after"),
+                records.stream().map(Metadata::getId).collect(Collectors.toList()));
+        try (Stream<Path> files = Files.list(errors)) {
+            assertEquals(Arrays.asList("invalid.xml", "invalid_stream.xml", "malformed.xml"),
+                    files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for writing records behind.
+ */
+public class WriteBehindTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long count(Path dir, String suffix) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private static long writerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("save-writer-") && t.isAlive()).count();
+    }
+
+    /**
+     * Write more records than fit in the queue, in batches, with and
+     * without syncing.
+     */
+    private void writeAll(boolean sync) throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        WriteBehind writeBehind = new WriteBehind(2, 8, sync);
+        for (int i = 0; i < 200; i++)
+            writeBehind.submit(provider, "id" + i, dir.resolve("r" + i + ".xml"), bytes("<r>" + i + "</r>"), null);
+        assertEquals(0, WriteBehind.await(provider));
+        writeBehind.shutdown();
+
+        assertEquals(200, count(dir, ".xml"));
+        assertEquals(0, count(dir, ".part"));
+        assertArrayEquals(bytes("<r>123</r>"), Files.readAllBytes(dir.resolve("r123.xml")));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        writeAll(false);
+    }
+
+    @Test
+    public void testWriteSync() throws Exception {
+        writeAll(true);
+    }
+
+    /**
+     * Test that a record that can't be moved into place is saved to its
+     * error file, and counted as a failure of its provider.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        // a directory that isn't empty can't be replaced by a file
+        Path blocked = dir.resolve("b.xml");
+        Files.createDirectories(blocked.resolve("sub"));
+
+        WriteBehind writeBehind = new WriteBehind(1, 8, false);
+        writeBehind.submit(provider, "a", dir.resolve("a.xml"), bytes("<a/>"), null);
+        writeBehind.submit(provider, "b", blocked, bytes("<b/>"), null);
+        assertEquals(1, WriteBehind.await(provider));
+        // the failure is reported once
+        assertEquals(0, WriteBehind.await(provider));
+        writeBehind.shutdown();
+
+        assertArrayEquals(bytes("<a/>"), Files.readAllBytes(dir.resolve("a.xml")));
+        assertArrayEquals(bytes("<b/>"), Files.readAllBytes(dir.resolve("b.xml.error")));
+        assertEquals(0, count(dir, ".part"));
+    }
+
+    /**
+     * Test that shutting down writes the records queued, then stops the
+     * writer threads.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        WriteBehind writeBehind = new WriteBehind(3, 64, false);
+        for (int i = 0; i < 50; i++)
+            writeBehind.submit(provider, "id" + i, dir.resolve("r" + i + ".xml"), bytes("<r/>"), null);
+        writeBehind.shutdown();
+
+        assertEquals(0, writerThreads());
+        assertEquals(50, count(dir, ".xml"));
+        assertEquals(0, WriteBehind.await(provider));
+        try {
+            writeBehind.submit(provider, "late", dir.resolve("late.xml"), bytes("<r/>"), null);
+            fail("record queued after shutdown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that records queued while shutting down are either written or
+     * refused, so waiting for them doesn't hang, even with a full queue.
+     */
+    @Test(timeout = 60000)
+    public void testShutdownWhileSaving() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        WriteBehind writeBehind = new WriteBehind(2, 1, false);
+        AtomicInteger queued = new AtomicInteger();
+        List<Thread> savers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int n = t;
+            Thread saver = new Thread(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        writeBehind.submit(provider, "id" + n + "_" + i,
+                                dir.resolve("r" + n + "_" + i + ".xml"), bytes("<r/>"), null);
+                        queued.incrementAndGet();
+                    }
+                } catch (IllegalStateException | InterruptedException e) {
+                    // refused after shutdown
+                }
+            });
+            saver.start();
+            savers.add(saver);
+        }
+        while (queued.get() < 100)
+            Thread.sleep(1);
+        writeBehind.shutdown();
+        for (Thread saver : savers)
+            saver.join();
+
+        assertEquals(0, WriteBehind.await(provider));
+        assertEquals(queued.get(), count(dir, ".xml"));
+        assertEquals(0, writerThreads());
+    }
+
+    /**
+     * Test that save actions writing behind are told apart by their
+     * writer threads, so a configuration read again doesn't share the
+     * threads of the one it replaces, while copies of an action do.
+     */
+    @Test
+    public void testIdentity() throws Exception {
+        OutputDirectory dir = new OutputDirectory(folder.newFolder().toPath());
+        SaveAction first = new SaveAction(dir, ".xml", false, false, null, null);
+        first.setWriteBehind(1, 8, false);
+        SaveAction second = new SaveAction(dir, ".xml", false, false, null, null);
+        second.setWriteBehind(1, 8, false);
+        try {
+            assertNotEquals(first, second);
+            assertEquals(first, first.clone());
+        } finally {
+            first.stopWriteBehind();
+            second.stopWriteBehind();
+        }
+    }
+}
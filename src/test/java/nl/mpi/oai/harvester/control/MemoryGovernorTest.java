@@ -0,0 +1,118 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for the memory governor.
+ */
+public class MemoryGovernorTest {
+
+    /**
+     * Test that a reservation larger than the budget is granted when
+     * nothing else is reserved, and that a second one then has to wait.
+     */
+    @Test
+    public void testReserveAndRelease() {
+        MemoryGovernor governor = new MemoryGovernor();
+        governor.setBudget(this, 100);
+
+        long first = governor.reserve(150);
+        assertEquals(150, governor.getReserved());
+
+        Thread.currentThread().interrupt();
+        try {
+            governor.reserve(10);
+            fail("expected the second reservation to wait");
+        } catch (CancellationException e) {
+            assertTrue(Thread.interrupted());
+        }
+
+        governor.release(first);
+        assertEquals(0, governor.getReserved());
+        governor.release(governor.reserve(10));
+    }
+
+    /**
+     * Test that removing the budget lets a waiting reservation through.
+     */
+    @Test
+    public void testRemoveBudget() {
+        MemoryGovernor governor = new MemoryGovernor();
+        governor.setBudget(this, 100);
+        long first = governor.reserve(80);
+        governor.removeBudget(this);
+        // waiting would throw
+        Thread.currentThread().interrupt();
+        long second = governor.reserve(80);
+        assertTrue(Thread.interrupted());
+        assertEquals(160, governor.getReserved());
+        governor.release(first);
+        governor.release(second);
+    }
+
+    /**
+     * Test that the largest budget of the owners applies, and that an
+     * owner without a budget doesn't lift it.
+     */
+    @Test
+    public void testLargestBudget() {
+        MemoryGovernor governor = new MemoryGovernor();
+        Object daemon = new Object();
+        Object embedded = new Object();
+        governor.setBudget(daemon, 100);
+        governor.setBudget(embedded, 0);
+        long first = governor.reserve(80);
+
+        Thread.currentThread().interrupt();
+        try {
+            governor.reserve(80);
+            fail("expected the budget of the daemon to apply");
+        } catch (CancellationException e) {
+            assertTrue(Thread.interrupted());
+        }
+
+        governor.setBudget(embedded, 200);
+        long second = governor.reserve(80);
+        governor.removeBudget(embedded);
+        Thread.currentThread().interrupt();
+        try {
+            governor.reserve(80);
+            fail("expected the budget of the daemon to apply again");
+        } catch (CancellationException e) {
+            assertTrue(Thread.interrupted());
+        }
+        governor.release(first);
+        governor.release(second);
+        assertEquals(0, governor.getReserved());
+    }
+
+    /**
+     * Test the estimate for a buffered response.
+     */
+    @Test
+    public void testEstimate() {
+        DocumentSource response = new DocumentSource(new ByteArrayInputStream(new byte[42]));
+        assertEquals(42 * MemoryGovernor.TREE_FACTOR, MemoryGovernor.estimate(response));
+    }
+}
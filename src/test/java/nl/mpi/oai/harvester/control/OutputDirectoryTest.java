@@ -0,0 +1,87 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for output directories.
+ */
+public class OutputDirectoryTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that a subdirectory asked for again is the same one, so files
+     * placed through it fill its numbered subdirectories up to the limit.
+     */
+    @Test
+    public void testSubdirectoryLimit() throws IOException {
+        OutputDirectory dir = new OutputDirectory(folder.getRoot().toPath(), 2);
+        assertSame(dir.makeSubdirectory("provider"), dir.makeSubdirectory("provider"));
+
+        Path first = dir.makeSubdirectory("provider").placeNewFile("a.xml");
+        Path second = dir.makeSubdirectory("provider").placeNewFile("b.xml");
+        Path third = dir.makeSubdirectory("provider").placeNewFile("c.xml");
+        assertEquals(first.getParent(), second.getParent());
+        assertNotEquals(second.getParent(), third.getParent());
+        assertEquals("0001", first.getParent().getFileName().toString());
+        assertEquals("0002", third.getParent().getFileName().toString());
+    }
+
+    /**
+     * Test that in the hashed layout a file is placed where it is looked
+     * up, two levels of subdirectories down, whatever the limit.
+     */
+    @Test
+    public void testHashedLayout() throws IOException {
+        OutputDirectory dir = new OutputDirectory(folder.getRoot().toPath(), 2, true).makeSubdirectory("provider");
+        Path base = folder.getRoot().toPath().resolve("provider");
+        for (String name : new String[]{"a.xml", "b.xml", "c.xml"}) {
+            Path path = dir.placeNewFile(name);
+            assertEquals(dir.locate(name), path);
+            assertEquals(OutputDirectory.hashedLocation(base, name), path);
+            assertEquals(base, path.getParent().getParent().getParent());
+            assertTrue(Files.isDirectory(path.getParent()));
+        }
+    }
+
+    /**
+     * Test that directories removed after files were placed in them are
+     * made again once they are forgotten.
+     */
+    @Test
+    public void testForget() throws IOException {
+        OutputDirectory top = new OutputDirectory(folder.getRoot().toPath(), 0, true);
+        OutputDirectory dir = top.makeSubdirectory("provider");
+        Path first = dir.placeNewFile("a.xml");
+        Files.delete(first.getParent());
+        Files.delete(first.getParent().getParent());
+
+        top.forget();
+        assertEquals(first, dir.placeNewFile("a.xml"));
+        assertTrue(Files.isDirectory(first.getParent()));
+    }
+}
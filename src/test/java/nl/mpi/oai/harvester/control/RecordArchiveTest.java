@@ -0,0 +1,259 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for archiving records.
+ */
+public class RecordArchiveTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** An entry name that doesn't fit in a tar header */
+    private static final String LONG_NAME;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 150)
+            sb.append("oai_long_identifier_");
+        LONG_NAME = sb.append(".xml").toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static Path part(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    /**
+     * Archive a record with a long name, a record with a short name, and
+     * the short one again, which is archived once.
+     */
+    private static void archive(Provider provider, Path target, RecordArchive.Format format) throws IOException {
+        RecordArchive archive = RecordArchive.get(provider, target, format);
+        assertSame(archive, RecordArchive.get(provider, target, format));
+        archive.add(LONG_NAME, "oai:long", bytes("<long/>"));
+        archive.add("short.xml", "oai:short", bytes("<short>text</short>"));
+        archive.add("short.xml", "oai:short", bytes("<short>again</short>"));
+        assertTrue(Files.exists(part(target)));
+    }
+
+    private static void checkEntries(Map<String, byte[]> entries) {
+        assertEquals(Arrays.asList(LONG_NAME, "short.xml", RecordArchive.INDEX),
+                Arrays.asList(entries.keySet().toArray()));
+        assertEquals("<long/>", string(entries.get(LONG_NAME)));
+        assertEquals("<short>text</short>", string(entries.get("short.xml")));
+        assertEquals("oai:long\t" + LONG_NAME + "\t7\n"
+                        + "oai:short\tshort.xml\t19\n",
+                string(entries.get(RecordArchive.INDEX)));
+    }
+
+    /**
+     * Read a tar file, checking the header of each entry, and resolving
+     * GNU long name entries.
+     */
+    private static Map<String, byte[]> readTar(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        byte[] header = new byte[512];
+        String longName = null;
+        while (true) {
+            data.readFully(header);
+            if (header[0] == 0) {
+                // the end of the archive is marked by two empty blocks
+                data.readFully(header);
+                assertTrue(Arrays.equals(new byte[512], header));
+                break;
+            }
+            assertEquals("ustar\u000000", new String(header, 257, 8, StandardCharsets.US_ASCII));
+            long sum = 0;
+            for (int i = 0; i < header.length; i++)
+                sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+            assertEquals(sum, octal(header, 148, 8));
+
+            byte[] body = new byte[(int) octal(header, 124, 12)];
+            data.readFully(body);
+            data.readFully(new byte[(512 - body.length % 512) % 512]);
+
+            String name = field(header, 0, 100);
+            if (header[156] == 'L') {
+                assertEquals("././@LongLink", name);
+                longName = field(body, 0, body.length);
+                continue;
+            }
+            assertEquals('0', header[156]);
+            if (longName != null) {
+                assertTrue(longName.startsWith(name));
+                name = longName;
+                longName = null;
+            }
+            entries.put(name, body);
+        }
+        assertEquals(-1, data.read());
+        return entries;
+    }
+
+    private static String field(byte[] b, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && b[end] != 0)
+            end++;
+        return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] b, int offset, int length) {
+        return Long.parseLong(field(b, offset, length).trim(), 8);
+    }
+
+    @Test
+    public void testTarGz() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path target = dir.resolve("dummy.tar.gz");
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        archive(provider, target, RecordArchive.Format.TAR_GZ);
+        RecordArchive.finish(provider, true);
+
+        assertFalse(Files.exists(part(target)));
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(target))) {
+            checkEntries(readTar(in));
+        }
+    }
+
+    @Test
+    public void testZip() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path target = dir.resolve("dummy.zip");
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        archive(provider, target, RecordArchive.Format.ZIP);
+        RecordArchive.finish(provider, true);
+
+        assertFalse(Files.exists(part(target)));
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(target), StandardCharsets.UTF_8)) {
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0; )
+                    out.write(buffer, 0, n);
+                entries.put(entry.getName(), out.toByteArray());
+            }
+        }
+        checkEntries(entries);
+    }
+
+    /**
+     * Test that the archive of a failed harvest is removed, leaving the
+     * archive of an earlier harvest in place.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path target = dir.resolve("dummy.tar.gz");
+        Files.write(target, bytes("earlier"));
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        archive(provider, target, RecordArchive.Format.TAR_GZ);
+        RecordArchive.finish(provider, false);
+
+        assertFalse(Files.exists(part(target)));
+        assertEquals("earlier", string(Files.readAllBytes(target)));
+
+        // a new harvest starts a new archive
+        archive(provider, target, RecordArchive.Format.TAR_GZ);
+        RecordArchive.finish(provider, false);
+        assertFalse(Files.exists(part(target)));
+
+        // finishing a provider without archives does nothing
+        RecordArchive.finish(provider, true);
+        assertEquals("earlier", string(Files.readAllBytes(target)));
+    }
+
+    private static List<Path> files(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Test that an incremental harvest writes a delta under a name of its
+     * own, keeping the earlier archives.
+     */
+    @Test
+    public void testIncremental() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path target = dir.resolve("dummy.zip");
+        Files.write(target, bytes("earlier"));
+        Provider provider = new Provider("dummy", 1, new int[]{0});
+        provider.setIncremental(true);
+
+        for (int run = 1; run <= 2; run++) {
+            RecordArchive.get(provider, target, RecordArchive.Format.ZIP)
+                    .add("short.xml", "oai:short", bytes("<short/>"));
+            RecordArchive.finish(provider, true);
+        }
+        // a harvest that saves nothing writes no delta
+        RecordArchive.finish(provider, true);
+
+        List<Path> files = files(dir);
+        assertEquals(3, files.size());
+        assertTrue(files.remove(target));
+        assertEquals("earlier", string(Files.readAllBytes(target)));
+        for (Path delta : files) {
+            String name = delta.getFileName().toString();
+            assertTrue(name, name.matches("dummy-\\d{8}-\\d{6}(-1)?\\.zip"));
+            try (ZipInputStream in = new ZipInputStream(Files.newInputStream(delta), StandardCharsets.UTF_8)) {
+                assertEquals("short.xml", in.getNextEntry().getName());
+            }
+        }
+    }
+
+    @Test
+    public void testFormat() {
+        assertEquals(RecordArchive.Format.ZIP, RecordArchive.Format.parse("zip"));
+        assertEquals(RecordArchive.Format.TAR_GZ, RecordArchive.Format.parse("TAR.GZ"));
+        assertNull(RecordArchive.Format.parse("rar"));
+        assertEquals(".tar.gz", RecordArchive.Format.TAR_GZ.getExtension());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for the record store.
+ */
+public class RecordStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).count();
+        }
+    }
+
+    /**
+     * Test that records replaced and deleted are found as they were last
+     * written, also after the store is opened again.
+     */
+    @Test
+    public void testPutDeleteReopen() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        RecordStore store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        store.put("a.xml", bytes("<a/>"));
+        store.put("b.xml", bytes("<b/>"));
+        store.put("a.xml", bytes("<a>2</a>"));
+        assertTrue(store.delete("b.xml"));
+        assertFalse(store.delete("c.xml"));
+        assertArrayEquals(bytes("<a>2</a>"), store.get("a.xml"));
+        assertNull(store.get("b.xml"));
+        store.close();
+
+        store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        assertEquals(1, store.size());
+        assertArrayEquals(bytes("<a>2</a>"), store.get("a.xml"));
+        assertNull(store.get("b.xml"));
+        store.close();
+    }
+
+    /**
+     * Test that a record only partly written is dropped when the store is
+     * opened again.
+     */
+    @Test
+    public void testPartialRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        RecordStore store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        store.put("a.xml", bytes("<a/>"));
+        store.put("b.xml", bytes("<b>some text</b>"));
+        store.close();
+
+        Path segment = dir.resolve("000001.seg");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        assertArrayEquals(bytes("<a/>"), store.get("a.xml"));
+        assertFalse(store.contains("b.xml"));
+        store.put("c.xml", bytes("<c/>"));
+        store.close();
+
+        store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        assertArrayEquals(bytes("<c/>"), store.get("c.xml"));
+        store.close();
+    }
+
+    /**
+     * Test that only the records not kept are deleted, as for a provider
+     * no longer listing them, and that the segments stay in place.
+     */
+    @Test
+    public void testRetain() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        RecordStore store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        store.put("a.xml", bytes("<a/>"));
+        store.put("b.xml", bytes("<b/>"));
+        store.put("c.xml", bytes("<c/>"));
+        assertEquals(Collections.singletonList("b.xml"),
+                store.retain(Arrays.asList("a.xml", "c.xml", "d.xml")));
+        assertEquals(1, segments(dir));
+        assertNull(store.get("b.xml"));
+        assertArrayEquals(bytes("<c/>"), store.get("c.xml"));
+        store.close();
+
+        store = RecordStore.open(dir, RecordStore.DEFAULT_SEGMENT_SIZE);
+        assertEquals(2, store.size());
+        assertFalse(store.contains("b.xml"));
+        store.close();
+    }
+
+    /**
+     * Test that segments holding only replaced records are removed by
+     * compaction, and the live records are kept.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        RecordStore store = RecordStore.open(dir, 64);
+        for (int i = 0; i < 10; i++)
+            store.put("r" + i + ".xml", bytes("<r>" + i + "</r>"));
+        for (int i = 0; i < 10; i++)
+            store.put("r" + i + ".xml", bytes("<r>x" + i + "</r>"));
+        store.delete("r0.xml");
+        long before = segments(dir);
+        store.compact();
+        assertTrue(segments(dir) < before);
+        assertNull(store.get("r0.xml"));
+        for (int i = 1; i < 10; i++)
+            assertArrayEquals(bytes("<r>x" + i + "</r>"), store.get("r" + i + ".xml"));
+        store.close();
+
+        store = RecordStore.open(dir, 64);
+        assertEquals(9, store.size());
+        assertNull(store.get("r0.xml"));
+        assertArrayEquals(bytes("<r>x5</r>"), store.get("r5.xml"));
+        store.close();
+    }
+
+    /**
+     * Test that closing all stores leaves their records on disk, that a
+     * closed store is no longer compacted, and that opening it again
+     * reads it anew.
+     */
+    @Test
+    public void testCloseAll() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        RecordStore store = RecordStore.open(dir, 64);
+        for (int i = 0; i < 10; i++)
+            store.put("r" + i + ".xml", bytes("<r>" + i + "</r>"));
+        for (int i = 0; i < 10; i++)
+            store.put("r" + i + ".xml", bytes("<r>x" + i + "</r>"));
+        RecordStore.closeAll();
+        long before = segments(dir);
+        store.compact();
+        store.close();
+        assertEquals(before, segments(dir));
+
+        RecordStore reopened = RecordStore.open(dir, 64);
+        assertNotSame(store, reopened);
+        assertEquals(10, reopened.size());
+        assertArrayEquals(bytes("<r>x3</r>"), reopened.get("r3.xml"));
+        reopened.close();
+    }
+}
@@ -20,6 +20,8 @@ package nl.mpi.oai.harvester.control;
 
 import nl.mpi.oai.harvester.control.ResourcePool;
 import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
 import static org.junit.Assert.*;
 
 /**
@@ -43,4 +45,21 @@ public class ResourcePoolTest {
 	pool.release(r);
 	assertEquals(pool.getNumAvailable(), 1);
     }    
+
+    /**
+     * Test that an interrupted wait for a resource is abandoned, and that
+     * the interrupt status of the thread is kept.
+     */
+    @Test
+    public void testInterruptedGet() {
+	ResourcePool<String> pool = new ResourcePool<>(new String[0]);
+	Thread.currentThread().interrupt();
+	try {
+	    pool.get();
+	    fail("expected the wait to be cancelled");
+	} catch (CancellationException e) {
+	    // expected
+	}
+	assertTrue(Thread.interrupted());
+    }
 }
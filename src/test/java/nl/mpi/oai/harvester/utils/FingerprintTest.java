@@ -0,0 +1,71 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for the fingerprints of records.
+ */
+public class FingerprintTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static String of(String xml) throws XMLStreamException {
+        return Fingerprint.of(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Test that formatting, prefixes and comments don't change the
+     * fingerprint, and content does.
+     */
+    @Test
+    public void testContent() throws XMLStreamException {
+        String fingerprint = of("<a xmlns='urn:x' b='1' c='2'><d>some  text</d></a>");
+        assertEquals(fingerprint, of("<?xml version='1.0'?>\n<x:a xmlns:x='urn:x' c='2' b='1'>\n"
+                + "  <!-- comment -->\n  <x:d>some\n text</x:d>\n</x:a>"));
+        assertNotEquals(fingerprint, of("<a xmlns='urn:x' b='1' c='3'><d>some  text</d></a>"));
+        assertNotEquals(fingerprint, of("<a xmlns='urn:x' b='1' c='2'><d>other text</d></a>"));
+        assertNotEquals(fingerprint, of("<a xmlns='urn:y' b='1' c='2'><d>some  text</d></a>"));
+    }
+
+    /**
+     * Test that the fingerprint of a saved record is computed from the
+     * file when it was not stored.
+     */
+    @Test
+    public void testStored() throws IOException, XMLStreamException {
+        Path file = folder.getRoot().toPath().resolve("record.xml");
+        assertNull(Fingerprint.stored(file));
+
+        Files.write(file, "<a><b/></a>".getBytes(StandardCharsets.UTF_8));
+        String fingerprint = Fingerprint.stored(file);
+        assertEquals(of("<a>\n  <b/>\n</a>"), fingerprint);
+        assertEquals(fingerprint, Fingerprint.stored(file));
+    }
+}